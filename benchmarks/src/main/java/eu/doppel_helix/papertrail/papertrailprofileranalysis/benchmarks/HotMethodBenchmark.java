@@ -0,0 +1,55 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis.benchmarks;
+
+import eu.doppel_helix.papertrail.papertrailprofileranalysis.HotMethodAggregator;
+import eu.doppel_helix.papertrail.papertrailprofileranalysis.HotMethodElement;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Aggregation of the hot method table from parsed stack traces, as done for
+ * the "Hot Methods" tab, reported as samples per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HotMethodBenchmark {
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Benchmark
+    @OperationsPerInvocation(ProfileFixture.RECORDS)
+    public List<HotMethodElement> aggregate(ProfileFixture fixture) {
+        return HotMethodAggregator.aggregate(fixture.getProfile(), threads).getHotMethods();
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis.benchmarks;
+
+import eu.doppel_helix.papertrail.papertrailprofileranalysis.PapertrailParser;
+import eu.doppel_helix.papertrail.papertrailprofileranalysis.Profile;
+import eu.doppel_helix.papertrail.papertrailprofileranalysis.ProfileGenerator;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Synthetic profile file shared by the benchmarks.
+ *
+ * <p>The file is written by {@link ProfileGenerator} and holds
+ * {@link #RECORDS} records with a sample count of one, so one benchmark
+ * operation corresponds to one sample. Each trace is {@code depth} frames
+ * deep, each method has {@code width} callees and the frames are mapped onto
+ * {@code symbols} symbols. The content only depends on the parameters.</p>
+ */
+@State(Scope.Benchmark)
+public class ProfileFixture {
+
+    public static final int RECORDS = 100_000;
+
+    @Param({"8", "64", "256"})
+    public int depth;
+
+    @Param({"4", "32"})
+    public int width;
+
+    @Param({"1000", "100000"})
+    public int symbols;
+
+    private Path file;
+    private Profile profile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = Files.createTempFile("benchmark", ".pprof");
+        new ProfileGenerator()
+            .setSamples(RECORDS)
+            .setSymbols(symbols)
+            .setDepth(depth, depth)
+            .setFanOut(width)
+            .write(file);
+        profile = new PapertrailParser(file, StandardCharsets.UTF_8);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        profile = null;
+        Files.deleteIfExists(file);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return the parsed fixture, shared between invocations
+     */
+    public Profile getProfile() {
+        return profile;
+    }
+}
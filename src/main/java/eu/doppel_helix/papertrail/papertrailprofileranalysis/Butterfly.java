@@ -0,0 +1,142 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Callers and callees of a single method, merged over all call sites.
+ *
+ * <p>For the method itself the self count is the number of samples where it
+ * is the innermost frame and the total count the number of samples where it
+ * is on the stack. For a caller the counts are those of the method, limited
+ * to the samples where the caller invoked it directly. For a callee they are
+ * those of the callee, limited to the samples where the method invoked it
+ * directly. Each trace contributes at most once to the total of an entry, so
+ * recursion does not inflate the totals. Samples where the method is the
+ * outermost frame are attributed to the {@value #ROOT_LOCATION} caller.</p>
+ *
+ * <p>Only the traces listed by the {@link TraceIndex} for the method are
+ * scanned.</p>
+ */
+public final class Butterfly {
+
+    public static final String ROOT_LOCATION = "<root>";
+    private static final int ROOT_SYMBOL_ID = -1;
+    private static final Comparator<HotMethodElement> BY_TOTAL_DESCENDING
+        = Comparator.comparingLong(HotMethodElement::getTotalTime).reversed();
+
+    private final HotMethodElement method;
+    private final List<HotMethodElement> callers;
+    private final List<HotMethodElement> callees;
+
+    private Butterfly(HotMethodElement method, List<HotMethodElement> callers, List<HotMethodElement> callees) {
+        this.method = method;
+        this.callers = Collections.unmodifiableList(callers);
+        this.callees = Collections.unmodifiableList(callees);
+    }
+
+    public HotMethodElement getMethod() {
+        return method;
+    }
+
+    /**
+     * @return the callers sorted by descending total count
+     */
+    public List<HotMethodElement> getCallers() {
+        return callers;
+    }
+
+    /**
+     * @return the callees sorted by descending total count
+     */
+    public List<HotMethodElement> getCallees() {
+        return callees;
+    }
+
+    public static Butterfly compute(TraceIndex index, int symbolId) {
+        List<StackTrace> traces = index.getTraces();
+        Map<Integer, Counts> callers = new HashMap<>();
+        Map<Integer, Counts> callees = new HashMap<>();
+        long self = 0;
+        long total = 0;
+        int traceCount = index.getTraceCount(symbolId);
+        for (int t = 0; t < traceCount; t++) {
+            int traceId = index.getTraceId(symbolId, t);
+            StackTrace st = traces.get(traceId);
+            long count = st.getCount();
+            int depth = st.getDepth();
+            total += count;
+            boolean innermost = st.getSymbolId(0) == symbolId;
+            if (innermost) {
+                self += count;
+            }
+            for (int i = 0; i < depth; i++) {
+                if (st.getSymbolId(i) != symbolId) {
+                    continue;
+                }
+                int caller = i + 1 < depth ? st.getSymbolId(i + 1) : ROOT_SYMBOL_ID;
+                Counts callerCounts = callers.computeIfAbsent(caller, k -> new Counts());
+                callerCounts.addTotal(traceId, count);
+                if (i == 0) {
+                    callerCounts.self += count;
+                }
+                if (i > 0) {
+                    Counts calleeCounts = callees.computeIfAbsent(st.getSymbolId(i - 1), k -> new Counts());
+                    calleeCounts.addTotal(traceId, count);
+                    if (i == 1) {
+                        calleeCounts.self += count;
+                    }
+                }
+            }
+        }
+        SymbolTable symbolTable = index.getSymbolTable();
+        return new Butterfly(
+            new HotMethodElement(symbolTable.getName(symbolId), self, total),
+            toElements(callers, symbolTable),
+            toElements(callees, symbolTable));
+    }
+
+    private static List<HotMethodElement> toElements(Map<Integer, Counts> counts, SymbolTable symbolTable) {
+        List<HotMethodElement> result = new ArrayList<>(counts.size());
+        for (Map.Entry<Integer, Counts> e : counts.entrySet()) {
+            String location = e.getKey() == ROOT_SYMBOL_ID ? ROOT_LOCATION : symbolTable.getName(e.getKey());
+            result.add(new HotMethodElement(location, e.getValue().self, e.getValue().total));
+        }
+        result.sort(BY_TOTAL_DESCENDING);
+        return result;
+    }
+
+    private static final class Counts {
+
+        private long self;
+        private long total;
+        private int lastTrace = -1;
+
+        void addTotal(int traceId, long count) {
+            if (lastTrace != traceId) {
+                lastTrace = traceId;
+                total += count;
+            }
+        }
+    }
+}
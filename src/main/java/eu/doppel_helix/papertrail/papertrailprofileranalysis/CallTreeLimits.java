@@ -0,0 +1,65 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+/**
+ * Limits for the size of a call tree. Paths below the limits are folded into
+ * a synthetic {@value #OTHER_LOCATION} child of their parent, so the counts of
+ * the remaining nodes stay exact.
+ */
+public final class CallTreeLimits {
+
+    public static final CallTreeLimits NONE = new CallTreeLimits(0, Integer.MAX_VALUE);
+
+    /**
+     * Symbol id of the nodes holding the folded samples.
+     */
+    public static final int OTHER_SYMBOL_ID = -2;
+    public static final String OTHER_LOCATION = "<other>";
+
+    private final double minFraction;
+    private final int maxNodes;
+
+    /**
+     * @param minFraction minimum fraction of the total sample count of a
+     *                    node, that is kept
+     * @param maxNodes    maximum number of nodes below the root, including
+     *                    the {@value #OTHER_LOCATION} nodes
+     */
+    public CallTreeLimits(double minFraction, int maxNodes) {
+        if (minFraction < 0 || minFraction > 1) {
+            throw new IllegalArgumentException("minFraction must be in [0, 1]: " + minFraction);
+        }
+        if (maxNodes < 2) {
+            throw new IllegalArgumentException("maxNodes must be at least 2: " + maxNodes);
+        }
+        this.minFraction = minFraction;
+        this.maxNodes = maxNodes;
+    }
+
+    public double getMinFraction() {
+        return minFraction;
+    }
+
+    public int getMaxNodes() {
+        return maxNodes;
+    }
+
+    public boolean isUnlimited() {
+        return minFraction == 0 && maxNodes == Integer.MAX_VALUE;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+/**
+ * Values of a call tree node, as shown by the renderers. Implemented by
+ * {@link StackTraceElementNode} and {@link CompactCallTree.Node}.
+ */
+public interface CallTreeNode {
+
+    String getLocation();
+
+    long getCount();
+
+    long getTotal();
+
+    long getSelfCount();
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.tree.TreeModel;
+
+/**
+ * Writes a call tree as indented text, one line per node.
+ *
+ * <p>The tree is walked with an explicit stack, so the depth of the tree is
+ * not limited by the thread stack. Subtrees deeper than the maximum depth
+ * or below the minimum share of the total sample count are skipped before
+ * they are formatted.</p>
+ */
+public class CallTreePrinter {
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+    private static final String CONTINUED = "|  ";
+    private static final String LAST = "   ";
+
+    private final Writer out;
+    private final int maxDepth;
+    private final double minPercent;
+    private final StringBuilder line = new StringBuilder(256);
+
+    /**
+     * @param out        target of the output, buffering is left to the caller
+     * @param maxDepth   maximum depth of the printed nodes, the children of
+     *                   the root have depth 1
+     * @param minPercent minimum share of the total sample count in percent,
+     *                   a node needs to be printed
+     */
+    public CallTreePrinter(Writer out, int maxDepth, double minPercent) {
+        this.out = out;
+        this.maxDepth = maxDepth;
+        this.minPercent = minPercent;
+    }
+
+    /**
+     * Print all nodes below the root of {@code model}, the nodes must
+     * implement {@link CallTreeNode}.
+     */
+    public void print(TreeModel model) throws IOException {
+        Object root = model.getRoot();
+        long total = ((CallTreeNode) root).getTotal();
+        // Indentation of the current node, built from one segment per
+        // ancestor
+        StringBuilder indent = new StringBuilder();
+        ArrayDeque<Entry> pending = new ArrayDeque<>();
+        pushChildren(pending, model, root, 1, total);
+        while (!pending.isEmpty()) {
+            Entry entry = pending.pop();
+            CallTreeNode node = (CallTreeNode) entry.node;
+            indent.setLength((entry.depth - 1) * CONTINUED.length());
+            line.setLength(0);
+            line.append(indent).append("+ [");
+            appendPadded(node.getCount());
+            line.append('/');
+            // Taken from the root, subtrees shared between call trees carry
+            // the total of the tree they were created for
+            appendPadded(total);
+            line.append("] ").append(node.getLocation()).append(LINE_SEPARATOR);
+            out.append(line);
+            indent.append(entry.last ? LAST : CONTINUED);
+            pushChildren(pending, model, entry.node, entry.depth + 1, total);
+        }
+    }
+
+    private void pushChildren(ArrayDeque<Entry> pending, TreeModel model, Object parent, int depth, long total) {
+        if (depth > maxDepth) {
+            return;
+        }
+        int childCount = model.getChildCount(parent);
+        List<Object> shown = new ArrayList<>(childCount);
+        for (int i = 0; i < childCount; i++) {
+            Object child = model.getChild(parent, i);
+            if (isShown(((CallTreeNode) child).getCount(), total)) {
+                shown.add(child);
+            }
+        }
+        for (int i = shown.size() - 1; i >= 0; i--) {
+            pending.push(new Entry(shown.get(i), depth, i == shown.size() - 1));
+        }
+    }
+
+    /**
+     * Print the diff tree below {@code root}. A node is shown, if its share
+     * of either profile reaches the minimum share.
+     */
+    public void printDiff(DiffNode root) throws IOException {
+        StringBuilder indent = new StringBuilder();
+        ArrayDeque<Entry> pending = new ArrayDeque<>();
+        pushDiffChildren(pending, root, 1);
+        while (!pending.isEmpty()) {
+            Entry entry = pending.pop();
+            DiffNode node = (DiffNode) entry.node;
+            indent.setLength((entry.depth - 1) * CONTINUED.length());
+            out.append(indent);
+            out.append(String.format("+ [%+7.2f%% %6.2f%% %6.2f%%] %s%n",
+                node.getDelta() * 100, node.getBaselineFraction() * 100, node.getCandidateFraction() * 100,
+                node.getLocation()));
+            indent.append(entry.last ? LAST : CONTINUED);
+            pushDiffChildren(pending, node, entry.depth + 1);
+        }
+    }
+
+    private void pushDiffChildren(ArrayDeque<Entry> pending, DiffNode parent, int depth) {
+        if (depth > maxDepth) {
+            return;
+        }
+        List<DiffNode> shown = new ArrayList<>(parent.getChildCount());
+        for (DiffNode child : parent.getChildren()) {
+            if (isShown(child.getBaselineCount(), child.getBaselineTotal())
+                || isShown(child.getCandidateCount(), child.getCandidateTotal())) {
+                shown.add(child);
+            }
+        }
+        for (int i = shown.size() - 1; i >= 0; i--) {
+            pending.push(new Entry(shown.get(i), depth, i == shown.size() - 1));
+        }
+    }
+
+    private boolean isShown(long count, long total) {
+        return minPercent <= 0 || (total > 0 && count * 100d / total >= minPercent);
+    }
+
+    /**
+     * Append {@code value} like {@code String.format("% 5d", value)}.
+     */
+    private void appendPadded(long value) {
+        int digits = 1;
+        for (long v = Math.abs(value / 10); v > 0; v /= 10) {
+            digits++;
+        }
+        for (int i = digits + 1; i < 5; i++) {
+            line.append(' ');
+        }
+        line.append(value < 0 ? '-' : ' ');
+        if (value == Long.MIN_VALUE) {
+            line.append(Long.toString(value).substring(1));
+        } else {
+            line.append(Math.abs(value));
+        }
+    }
+
+    private static final class Entry {
+
+        private final Object node;
+        private final int depth;
+        private final boolean last;
+
+        Entry(Object node, int depth, boolean last) {
+            this.node = node;
+            this.depth = depth;
+            this.last = last;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Applies {@link CallTreeLimits} to a call tree while it is built.
+ *
+ * <p>The builder reports the number of created nodes. Once the tree grows
+ * above the node limit, or every time it doubled in size if only a minimum
+ * fraction is set, the subtrees below the limits are folded into
+ * {@value CallTreeLimits#OTHER_LOCATION} nodes. The fraction is relative to
+ * the samples seen so far, so peak memory is bounded by the significant
+ * paths. A path, that only becomes significant after it was folded, is
+ * rebuilt from later samples, the earlier samples stay in the
+ * {@value CallTreeLimits#OTHER_LOCATION} node of its parent.</p>
+ */
+final class CallTreePruner {
+
+    private static final int FIRST_CHECK = 64 * 1024;
+
+    private final CallTreeLimits limits;
+    private int nodeCount;
+    private int nextCheck;
+
+    CallTreePruner(CallTreeLimits limits) {
+        this.limits = limits;
+        this.nextCheck = Math.min(FIRST_CHECK, limits.getMaxNodes());
+    }
+
+    /**
+     * Record {@code created} new nodes below {@code root} and prune the tree
+     * if necessary.
+     */
+    void nodesCreated(StackTraceElementNode root, int created) {
+        if (limits.isUnlimited()) {
+            return;
+        }
+        nodeCount += created;
+        if (nodeCount > nextCheck) {
+            // Prune to half of the limit, so that pruning is not necessary
+            // for each new trace
+            nodeCount = prune(root, limits, maxKept(limits));
+            // The remaining nodes include the OTHER nodes and can be close
+            // to the limit, so the next check is relative to the pruned
+            // size. Without a node limit, check again once the tree doubled.
+            nextCheck = limits.getMaxNodes() == Integer.MAX_VALUE
+                ? Math.max(FIRST_CHECK, nodeCount * 2)
+                : (int) Math.min(Integer.MAX_VALUE, (long) nodeCount + Math.max(1, limits.getMaxNodes() / 2));
+        }
+    }
+
+    /**
+     * Apply {@code limits} to the complete tree below {@code root}. The
+     * counts of the nodes must be final, the result is not finished.
+     */
+    static void pruneFinal(StackTraceElementNode root, CallTreeLimits limits) {
+        if (!limits.isUnlimited()) {
+            prune(root, limits, maxKept(limits));
+        }
+    }
+
+    /**
+     * Each kept node and the root can get an additional
+     * {@value CallTreeLimits#OTHER_LOCATION} child, so keeping
+     * {@code (maxNodes - 1) / 2} nodes bounds the tree by {@code maxNodes}.
+     */
+    private static int maxKept(CallTreeLimits limits) {
+        return (limits.getMaxNodes() - 1) / 2;
+    }
+
+    /**
+     * Fold all nodes below the minimum fraction and, if more than
+     * {@code maxKept} nodes remain, the smallest nodes into
+     * {@value CallTreeLimits#OTHER_LOCATION} children.
+     *
+     * @return number of remaining nodes below {@code root}
+     */
+    private static int prune(StackTraceElementNode root, CallTreeLimits limits, int maxKept) {
+        long cut = (long) Math.ceil(root.getCount() * limits.getMinFraction()) - 1;
+        long[] counts = collectCounts(root);
+        if (counts.length > maxKept) {
+            Arrays.sort(counts);
+            // Fold all nodes with counts up to the largest count, that does
+            // not fit into maxKept
+            cut = Math.max(cut, counts[counts.length - maxKept - 1]);
+        }
+        final long limit = cut;
+        int remaining = 0;
+        ArrayDeque<StackTraceElementNode> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            StackTraceElementNode node = pending.pop();
+            long folded = node.removeChildren(child -> child.getSymbolId() != CallTreeLimits.OTHER_SYMBOL_ID
+                && child.getCount() <= limit);
+            if (folded > 0) {
+                StackTraceElementNode other = node.findChild(CallTreeLimits.OTHER_SYMBOL_ID);
+                if (other == null) {
+                    other = new StackTraceElementNode();
+                    other.setSymbolId(CallTreeLimits.OTHER_SYMBOL_ID);
+                    other.setLocation(CallTreeLimits.OTHER_LOCATION);
+                    node.add(other);
+                }
+                other.setCount(other.getCount() + folded);
+            }
+            for (StackTraceElementNode child : node.getChildren()) {
+                remaining++;
+                pending.push(child);
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * @return counts of all nodes below {@code root}, except the
+     *         {@value CallTreeLimits#OTHER_LOCATION} nodes
+     */
+    private static long[] collectCounts(StackTraceElementNode root) {
+        long[] counts = new long[1024];
+        int size = 0;
+        ArrayDeque<StackTraceElementNode> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            StackTraceElementNode node = pending.pop();
+            for (StackTraceElementNode child : node.getChildren()) {
+                if (child.getSymbolId() != CallTreeLimits.OTHER_SYMBOL_ID) {
+                    if (size == counts.length) {
+                        counts = Arrays.copyOf(counts, size * 2);
+                    }
+                    counts[size++] = child.getCount();
+                }
+                pending.push(child);
+            }
+        }
+        return Arrays.copyOf(counts, size);
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.util.Arrays;
+
+/**
+ * Call tree stored as parallel primitive arrays instead of one
+ * {@link StackTraceElementNode} per node.
+ *
+ * <p>Nodes are identified by their index, the root has index 0. After the
+ * tree is built, the nodes are renumbered in breadth first order, so that the
+ * children of a node occupy the contiguous index range
+ * {@code getFirstChild(node) ... getFirstChild(node) + getChildCount(node) - 1},
+ * ordered by descending count.</p>
+ */
+public final class CompactCallTree {
+
+    public static final int NO_NODE = -1;
+
+    private final SymbolTable symbolTable;
+    private final int size;
+    private final int[] parent;
+    private final int[] firstChild;
+    private final int[] nextSibling;
+    private final int[] childCount;
+    private final int[] symbolId;
+    private final long[] count;
+    private final long[] selfCount;
+
+    private CompactCallTree(SymbolTable symbolTable, int size, int[] parent, int[] firstChild, int[] nextSibling, int[] childCount, int[] symbolId, long[] count, long[] selfCount) {
+        this.symbolTable = symbolTable;
+        this.size = size;
+        this.parent = parent;
+        this.firstChild = firstChild;
+        this.nextSibling = nextSibling;
+        this.childCount = childCount;
+        this.symbolId = symbolId;
+        this.count = count;
+        this.selfCount = selfCount;
+    }
+
+    public static CompactCallTree build(Profile pp) {
+        Collector collector = new Collector();
+        if (pp != null) {
+            collector.visitSymbols(pp.getBinary(), pp.getSymbolTable());
+            int[] frames = new int[64];
+            for (StackTrace st : pp.getStackTraces()) {
+                if (frames.length < st.getDepth()) {
+                    frames = new int[st.getDepth() * 2];
+                }
+                for (int i = 0; i < st.getDepth(); i++) {
+                    frames[i] = st.getSymbolId(i);
+                }
+                collector.visitRecord(st.getCount(), frames, st.getDepth());
+            }
+        }
+        return collector.getTree();
+    }
+
+    public SymbolTable getSymbolTable() {
+        return symbolTable;
+    }
+
+    /**
+     * @return number of nodes including the root
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getRoot() {
+        return 0;
+    }
+
+    public long getTotal() {
+        return count[0];
+    }
+
+    public int getParent(int node) {
+        return parent[node];
+    }
+
+    public int getFirstChild(int node) {
+        return firstChild[node];
+    }
+
+    public int getNextSibling(int node) {
+        return nextSibling[node];
+    }
+
+    public int getChildCount(int node) {
+        return childCount[node];
+    }
+
+    /**
+     * @return symbol id of the node or -1 for the root
+     */
+    public int getSymbolId(int node) {
+        return symbolId[node];
+    }
+
+    public String getLocation(int node) {
+        return symbolId[node] < 0 ? "<>" : symbolTable.getName(symbolId[node]);
+    }
+
+    public long getCount(int node) {
+        return count[node];
+    }
+
+    public long getSelfCount(int node) {
+        return selfCount[node];
+    }
+
+    /**
+     * @return lightweight handle for {@code node}, handles for the same node
+     *         are equal
+     */
+    public Node getNode(int node) {
+        return new Node(this, node);
+    }
+
+    /**
+     * Handle of a single node, used by {@link CompactCallTreeModel} where the
+     * swing API requires objects.
+     */
+    public static final class Node implements CallTreeNode {
+
+        private final CompactCallTree tree;
+        private final int index;
+
+        private Node(CompactCallTree tree, int index) {
+            this.tree = tree;
+            this.index = index;
+        }
+
+        public CompactCallTree getTree() {
+            return tree;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        @Override
+        public String getLocation() {
+            return tree.getLocation(index);
+        }
+
+        @Override
+        public long getCount() {
+            return tree.getCount(index);
+        }
+
+        @Override
+        public long getTotal() {
+            return tree.getTotal();
+        }
+
+        @Override
+        public long getSelfCount() {
+            return tree.getSelfCount(index);
+        }
+
+        @Override
+        public int hashCode() {
+            return index;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final Node other = (Node) obj;
+            return index == other.index && tree == other.tree;
+        }
+
+        @Override
+        public String toString() {
+            return getLocation();
+        }
+    }
+
+    /**
+     * Builds the tree from the records reported by
+     * {@link PapertrailParser#parse(java.nio.file.Path, java.nio.charset.Charset, ProfileRecordVisitor)}.
+     *
+     * <p>While building, children are kept as singly linked lists and found
+     * through an open addressing hash keyed by (parent, symbol id).</p>
+     */
+    public static class Collector implements ProfileRecordVisitor {
+
+        private SymbolTable symbolTable;
+        private int size = 1;
+        private int[] parent = new int[1024];
+        private int[] firstChild = new int[1024];
+        private int[] nextSibling = new int[1024];
+        private int[] symbolId = new int[1024];
+        private long[] count = new long[1024];
+        private int[] index = new int[2048];
+        private CompactCallTree tree;
+
+        public Collector() {
+            parent[0] = NO_NODE;
+            firstChild[0] = NO_NODE;
+            nextSibling[0] = NO_NODE;
+            symbolId[0] = -1;
+            Arrays.fill(index, NO_NODE);
+        }
+
+        @Override
+        public void visitSymbols(String binary, SymbolTable symbolTable) {
+            this.symbolTable = symbolTable;
+        }
+
+        @Override
+        public void visitRecord(long sampleCount, int[] frames, int depth) {
+            if (tree != null) {
+                throw new IllegalStateException("Call tree was already finished");
+            }
+            int node = 0;
+            count[0] += sampleCount;
+            for (int i = depth - 1; i >= 0; i--) {
+                node = findOrAddChild(node, frames[i]);
+                count[node] += sampleCount;
+            }
+        }
+
+        private int findOrAddChild(int parentNode, int childSymbol) {
+            int mask = index.length - 1;
+            int slot = mix(parentNode, childSymbol) & mask;
+            for (; index[slot] != NO_NODE; slot = (slot + 1) & mask) {
+                int candidate = index[slot];
+                if (parent[candidate] == parentNode && symbolId[candidate] == childSymbol) {
+                    return candidate;
+                }
+            }
+            if (size == parent.length) {
+                int capacity = size * 2;
+                parent = Arrays.copyOf(parent, capacity);
+                firstChild = Arrays.copyOf(firstChild, capacity);
+                nextSibling = Arrays.copyOf(nextSibling, capacity);
+                symbolId = Arrays.copyOf(symbolId, capacity);
+                count = Arrays.copyOf(count, capacity);
+            }
+            int node = size++;
+            parent[node] = parentNode;
+            symbolId[node] = childSymbol;
+            firstChild[node] = NO_NODE;
+            // Children are prepended, the order is restored in getTree
+            nextSibling[node] = firstChild[parentNode];
+            firstChild[parentNode] = node;
+            index[slot] = node;
+            if (size * 2 > index.length) {
+                rehash(index.length * 2);
+            }
+            return node;
+        }
+
+        private void rehash(int capacity) {
+            index = new int[capacity];
+            Arrays.fill(index, NO_NODE);
+            int mask = capacity - 1;
+            for (int node = 1; node < size; node++) {
+                int slot = mix(parent[node], symbolId[node]) & mask;
+                while (index[slot] != NO_NODE) {
+                    slot = (slot + 1) & mask;
+                }
+                index[slot] = node;
+            }
+        }
+
+        private static int mix(int parentNode, int childSymbol) {
+            long value = (((long) parentNode) << 32) | (childSymbol & 0xFFFFFFFFL);
+            value ^= value >>> 33;
+            value *= 0xff51afd7ed558ccdL;
+            value ^= value >>> 33;
+            return (int) value;
+        }
+
+        /**
+         * Finish the tree: renumber the nodes in breadth first order with
+         * the children sorted by descending count. No further records can be
+         * added after this call.
+         */
+        public CompactCallTree getTree() {
+            if (tree != null) {
+                return tree;
+            }
+            index = null;
+            int[] order = new int[size];
+            int[] newParent = new int[size];
+            int[] newFirstChild = new int[size];
+            int[] newNextSibling = new int[size];
+            int[] newChildCount = new int[size];
+            int[] newSymbolId = new int[size];
+            long[] newCount = new long[size];
+            long[] newSelfCount = new long[size];
+            int[] children = new int[16];
+            int[] scratch = new int[16];
+            order[0] = 0;
+            newParent[0] = NO_NODE;
+            int appended = 1;
+            for (int position = 0; position < size; position++) {
+                int oldNode = order[position];
+                int found = 0;
+                for (int child = firstChild[oldNode]; child != NO_NODE; child = nextSibling[child]) {
+                    if (found == children.length) {
+                        children = Arrays.copyOf(children, found * 2);
+                        scratch = new int[children.length];
+                    }
+                    children[found++] = child;
+                }
+                // Prepending reversed the order of first appearance
+                for (int i = 0, j = found - 1; i < j; i++, j--) {
+                    int tmp = children[i];
+                    children[i] = children[j];
+                    children[j] = tmp;
+                }
+                sortByCountDescending(children, scratch, 0, found, count);
+                long childSum = 0;
+                newFirstChild[position] = found > 0 ? appended : NO_NODE;
+                newChildCount[position] = found;
+                for (int i = 0; i < found; i++) {
+                    int newNode = appended++;
+                    order[newNode] = children[i];
+                    newParent[newNode] = position;
+                    newNextSibling[newNode] = i + 1 < found ? newNode + 1 : NO_NODE;
+                    childSum += count[children[i]];
+                }
+                newSymbolId[position] = symbolId[oldNode];
+                newCount[position] = count[oldNode];
+                newSelfCount[position] = count[oldNode] - childSum;
+            }
+            newNextSibling[0] = NO_NODE;
+            tree = new CompactCallTree(symbolTable, size, newParent, newFirstChild, newNextSibling, newChildCount, newSymbolId, newCount, newSelfCount);
+            parent = null;
+            firstChild = null;
+            nextSibling = null;
+            symbolId = null;
+            count = null;
+            return tree;
+        }
+
+        /**
+         * Stable merge sort of {@code nodes[from, to)} by descending count.
+         */
+        private static void sortByCountDescending(int[] nodes, int[] scratch, int from, int to, long[] count) {
+            if (to - from < 2) {
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            sortByCountDescending(nodes, scratch, from, middle, count);
+            sortByCountDescending(nodes, scratch, middle, to, count);
+            if (count[nodes[middle - 1]] >= count[nodes[middle]]) {
+                return;
+            }
+            System.arraycopy(nodes, from, scratch, from, to - from);
+            int left = from;
+            int right = middle;
+            for (int i = from; i < to; i++) {
+                if (right >= to || (left < middle && count[scratch[left]] >= count[scratch[right]])) {
+                    nodes[i] = scratch[left++];
+                } else {
+                    nodes[i] = scratch[right++];
+                }
+            }
+        }
+    }
+}
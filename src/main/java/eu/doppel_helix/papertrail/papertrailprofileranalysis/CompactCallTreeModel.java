@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import javax.swing.event.EventListenerList;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.TreeModel;
+import javax.swing.tree.TreePath;
+
+/**
+ * Read-only {@link TreeModel} on top of a {@link CompactCallTree}. The nodes
+ * are {@link CompactCallTree.Node} handles, which are only created for the
+ * nodes the view asks for.
+ */
+public class CompactCallTreeModel implements TreeModel {
+
+    private final EventListenerList listenerList = new EventListenerList();
+    private CompactCallTree tree;
+
+    public CompactCallTreeModel(CompactCallTree tree) {
+        this.tree = tree;
+    }
+
+    public CompactCallTree getTree() {
+        return tree;
+    }
+
+    public void setTree(CompactCallTree tree) {
+        this.tree = tree;
+        TreeModelEvent event = new TreeModelEvent(this, new Object[]{getRoot()});
+        for (TreeModelListener listener : listenerList.getListeners(TreeModelListener.class)) {
+            listener.treeStructureChanged(event);
+        }
+    }
+
+    @Override
+    public CompactCallTree.Node getRoot() {
+        return tree.getNode(tree.getRoot());
+    }
+
+    @Override
+    public CompactCallTree.Node getChild(Object parent, int index) {
+        return tree.getNode(tree.getFirstChild(((CompactCallTree.Node) parent).getIndex()) + index);
+    }
+
+    @Override
+    public int getChildCount(Object parent) {
+        return tree.getChildCount(((CompactCallTree.Node) parent).getIndex());
+    }
+
+    @Override
+    public boolean isLeaf(Object node) {
+        return getChildCount(node) == 0;
+    }
+
+    @Override
+    public int getIndexOfChild(Object parent, Object child) {
+        if (!(parent instanceof CompactCallTree.Node) || !(child instanceof CompactCallTree.Node)) {
+            return -1;
+        }
+        int parentIndex = ((CompactCallTree.Node) parent).getIndex();
+        int childIndex = ((CompactCallTree.Node) child).getIndex();
+        if (tree.getParent(childIndex) != parentIndex) {
+            return -1;
+        }
+        return childIndex - tree.getFirstChild(parentIndex);
+    }
+
+    /**
+     * @return path from the root to {@code node}
+     */
+    public TreePath getPath(int node) {
+        int depth = 0;
+        for (int n = node; n != CompactCallTree.NO_NODE; n = tree.getParent(n)) {
+            depth++;
+        }
+        Object[] elements = new Object[depth];
+        for (int n = node; n != CompactCallTree.NO_NODE; n = tree.getParent(n)) {
+            elements[--depth] = tree.getNode(n);
+        }
+        return new TreePath(elements);
+    }
+
+    @Override
+    public void valueForPathChanged(TreePath path, Object newValue) {
+        // The call tree is read-only
+    }
+
+    @Override
+    public void addTreeModelListener(TreeModelListener l) {
+        listenerList.add(TreeModelListener.class, l);
+    }
+
+    @Override
+    public void removeTreeModelListener(TreeModelListener l) {
+        listenerList.remove(TreeModelListener.class, l);
+    }
+}
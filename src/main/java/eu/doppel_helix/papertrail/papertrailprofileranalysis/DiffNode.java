@@ -0,0 +1,145 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import javax.swing.tree.TreeNode;
+
+/**
+ * Node of the tree created by {@link ProfileDiff}. The counts are normalized
+ * to the total sample count of the respective profile, so profiles of
+ * different length can be compared.
+ */
+public class DiffNode implements TreeNode {
+
+    /**
+     * Orders by the largest regression first, i.e. by descending delta, ties
+     * are ordered by descending candidate count.
+     */
+    public static final Comparator<DiffNode> BY_DELTA_DESCENDING = Comparator
+        .comparingDouble(DiffNode::getDelta)
+        .thenComparingLong(DiffNode::getCandidateCount)
+        .reversed();
+
+    private final List<DiffNode> children = new ArrayList<>();
+    private DiffNode parent;
+    private final String location;
+    private final long baselineCount;
+    private final long baselineTotal;
+    private final long candidateCount;
+    private final long candidateTotal;
+
+    public DiffNode(String location, long baselineCount, long baselineTotal, long candidateCount, long candidateTotal) {
+        this.location = location;
+        this.baselineCount = baselineCount;
+        this.baselineTotal = baselineTotal;
+        this.candidateCount = candidateCount;
+        this.candidateTotal = candidateTotal;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public long getBaselineCount() {
+        return baselineCount;
+    }
+
+    public long getBaselineTotal() {
+        return baselineTotal;
+    }
+
+    public long getCandidateCount() {
+        return candidateCount;
+    }
+
+    public long getCandidateTotal() {
+        return candidateTotal;
+    }
+
+    public double getBaselineFraction() {
+        return baselineTotal == 0 ? 0 : ((double) baselineCount) / baselineTotal;
+    }
+
+    public double getCandidateFraction() {
+        return candidateTotal == 0 ? 0 : ((double) candidateCount) / candidateTotal;
+    }
+
+    /**
+     * @return change of the normalized count, positive values are regressions
+     */
+    public double getDelta() {
+        return getCandidateFraction() - getBaselineFraction();
+    }
+
+    public void add(DiffNode child) {
+        child.parent = this;
+        children.add(child);
+    }
+
+    public List<DiffNode> getChildren() {
+        return Collections.unmodifiableList(children);
+    }
+
+    public void sortChildren(Comparator<DiffNode> comparator) {
+        Collections.sort(children, comparator);
+    }
+
+    @Override
+    public DiffNode getChildAt(int childIndex) {
+        return children.get(childIndex);
+    }
+
+    @Override
+    public int getChildCount() {
+        return children.size();
+    }
+
+    @Override
+    public DiffNode getParent() {
+        return parent;
+    }
+
+    @Override
+    public int getIndex(TreeNode node) {
+        return children.indexOf(node);
+    }
+
+    @Override
+    public boolean getAllowsChildren() {
+        return true;
+    }
+
+    @Override
+    public boolean isLeaf() {
+        return children.isEmpty();
+    }
+
+    @Override
+    public Enumeration<? extends TreeNode> children() {
+        return Collections.enumeration(children);
+    }
+
+    @Override
+    public String toString() {
+        return location;
+    }
+}
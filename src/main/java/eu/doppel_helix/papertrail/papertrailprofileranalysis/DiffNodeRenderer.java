@@ -0,0 +1,58 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.awt.Color;
+import java.awt.Component;
+import javax.swing.JTree;
+import javax.swing.tree.DefaultTreeCellRenderer;
+
+/**
+ * Renders a {@link DiffNode} as delta, baseline and candidate share, followed
+ * by the location. Regressions are shown in red, improvements in green.
+ */
+public final class DiffNodeRenderer extends DefaultTreeCellRenderer {
+
+    private static final Color REGRESSION = new Color(0xB0, 0x00, 0x00);
+    private static final Color IMPROVEMENT = new Color(0x00, 0x80, 0x00);
+
+    public DiffNodeRenderer() {
+        setLeafIcon(null);
+        setOpenIcon(null);
+        setClosedIcon(null);
+    }
+
+    @Override
+    public Component getTreeCellRendererComponent(JTree tree, Object value, boolean sel, boolean expanded, boolean leaf, int row, boolean hasFocus) {
+        if (value instanceof DiffNode) {
+            DiffNode node = (DiffNode) value;
+            value = String.format("%+7.2f%%  [%6.2f%% -> %6.2f%%]  %s",
+                node.getDelta() * 100,
+                node.getBaselineFraction() * 100,
+                node.getCandidateFraction() * 100,
+                node.getLocation());
+            super.getTreeCellRendererComponent(tree, value, sel, expanded, leaf, row, hasFocus);
+            if (!sel && node.getDelta() > 0) {
+                setForeground(REGRESSION);
+            } else if (!sel && node.getDelta() < 0) {
+                setForeground(IMPROVEMENT);
+            }
+            return this;
+        }
+        return super.getTreeCellRendererComponent(tree, value, sel, expanded, leaf, row, hasFocus);
+    }
+}
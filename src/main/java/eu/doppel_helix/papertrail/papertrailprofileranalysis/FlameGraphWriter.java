@@ -0,0 +1,286 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import javax.swing.tree.TreeModel;
+
+/**
+ * Writes a call tree as a self-contained HTML file with an interactive SVG
+ * flame graph. Clicking a frame zooms into it, the search field highlights
+ * the frames matching a regular expression.
+ *
+ * <p>The tree is laid out with an explicit stack. The children of a node,
+ * which would be narrower than one pixel, are coalesced into a single frame
+ * and their subtrees are skipped, so the size of the output is bounded by the
+ * width of the graph and not by the size of the tree. As a consequence
+ * zooming does not reveal more detail than present at full width.</p>
+ */
+public class FlameGraphWriter {
+
+    public static final int DEFAULT_WIDTH = 1200;
+    private static final int FRAME_HEIGHT = 16;
+    private static final double MIN_WIDTH = 1;
+    // Coalesced frames narrower than this are not written at all
+    private static final double MIN_COALESCED_WIDTH = 0.1;
+
+    private static final String SCRIPT = ""
+        + "(function() {\n"
+        + "  var svg = document.getElementById('flame');\n"
+        + "  var width = +svg.getAttribute('width');\n"
+        + "  var search = document.getElementById('search');\n"
+        + "  var matched = document.getElementById('matched');\n"
+        + "  var frames = [];\n"
+        + "  Array.prototype.forEach.call(document.querySelectorAll('#frames > g'), function(g) {\n"
+        + "    var r = g.querySelector('rect');\n"
+        + "    var t = document.createElementNS('http://www.w3.org/2000/svg', 'text');\n"
+        + "    g.appendChild(t);\n"
+        + "    var f = {g: g, r: r, t: t, x: +r.getAttribute('x'), y: +r.getAttribute('y'),\n"
+        + "      w: +r.getAttribute('width'), fill: r.getAttribute('fill'),\n"
+        + "      name: g.querySelector('title').textContent.split('\\n')[0]};\n"
+        + "    g.frame = f;\n"
+        + "    frames.push(f);\n"
+        + "  });\n"
+        + "  function place(f, x, w) {\n"
+        + "    f.r.setAttribute('x', x.toFixed(2));\n"
+        + "    f.r.setAttribute('width', w.toFixed(2));\n"
+        + "    var chars = Math.floor((w - 6) / 7);\n"
+        + "    f.t.textContent = chars < 3 ? '' : f.name.length <= chars ? f.name : f.name.substring(0, chars - 2) + '..';\n"
+        + "    f.t.setAttribute('x', (x + 3).toFixed(2));\n"
+        + "    f.t.setAttribute('y', f.y + 11.5);\n"
+        + "  }\n"
+        + "  function zoom(z) {\n"
+        + "    var scale = width / z.w;\n"
+        + "    frames.forEach(function(f) {\n"
+        + "      var visible;\n"
+        + "      if (f.y > z.y) {\n"
+        + "        visible = f.x <= z.x + 0.01 && f.x + f.w >= z.x + z.w - 0.01;\n"
+        + "        if (visible) place(f, 0, width);\n"
+        + "      } else {\n"
+        + "        visible = f.x >= z.x - 0.01 && f.x + f.w <= z.x + z.w + 0.01;\n"
+        + "        if (visible) place(f, (f.x - z.x) * scale, f.w * scale);\n"
+        + "      }\n"
+        + "      f.g.style.display = visible ? '' : 'none';\n"
+        + "      f.g.style.opacity = f.y > z.y ? 0.5 : 1;\n"
+        + "    });\n"
+        + "  }\n"
+        + "  function highlight() {\n"
+        + "    var re = null;\n"
+        + "    if (search.value) {\n"
+        + "      try {\n"
+        + "        re = new RegExp(search.value);\n"
+        + "      } catch (e) {\n"
+        + "        re = new RegExp(search.value.replace(/[.*+?^${}()|[\\]\\\\]/g, '\\\\$&'));\n"
+        + "      }\n"
+        + "    }\n"
+        + "    var hits = [];\n"
+        + "    frames.forEach(function(f) {\n"
+        + "      var hit = re !== null && re.test(f.name);\n"
+        + "      f.r.setAttribute('fill', hit ? 'rgb(230,0,230)' : f.fill);\n"
+        + "      if (hit) hits.push(f);\n"
+        + "    });\n"
+        + "    hits.sort(function(a, b) { return a.x - b.x; });\n"
+        + "    var sum = 0, end = 0;\n"
+        + "    hits.forEach(function(f) {\n"
+        + "      if (f.x + f.w > end) {\n"
+        + "        sum += f.x + f.w - Math.max(f.x, end);\n"
+        + "        end = f.x + f.w;\n"
+        + "      }\n"
+        + "    });\n"
+        + "    matched.textContent = re === null ? '' : 'Matched: ' + (sum * 100 / width).toFixed(2) + '%';\n"
+        + "  }\n"
+        + "  svg.addEventListener('click', function(e) {\n"
+        + "    for (var n = e.target; n !== svg; n = n.parentNode) {\n"
+        + "      if (n.frame) {\n"
+        + "        zoom(n.frame);\n"
+        + "        return;\n"
+        + "      }\n"
+        + "    }\n"
+        + "  });\n"
+        + "  document.getElementById('reset').addEventListener('click', function() {\n"
+        + "    if (frames.length > 0) zoom(frames[0]);\n"
+        + "  });\n"
+        + "  search.addEventListener('input', highlight);\n"
+        + "  if (frames.length > 0) zoom(frames[0]);\n"
+        + "})();\n";
+
+    private final int width;
+    private final StringBuilder frames = new StringBuilder(1 << 16);
+    private int maxDepth;
+
+    public FlameGraphWriter() {
+        this(DEFAULT_WIDTH);
+    }
+
+    /**
+     * @param width width of the graph in pixels
+     */
+    public FlameGraphWriter(int width) {
+        this.width = width;
+    }
+
+    /**
+     * Write the flame graph of {@code model}, the nodes must implement
+     * {@link CallTreeNode}. The root is the bottom frame, the widths are
+     * relative to its count, so unfinished trees can be written too.
+     */
+    public void write(TreeModel model, String title, Writer out) throws IOException {
+        frames.setLength(0);
+        maxDepth = -1;
+        Object root = model.getRoot();
+        long total = ((CallTreeNode) root).getCount();
+        if (total > 0) {
+            layout(model, root, total);
+        }
+        int graphHeight = (maxDepth + 1) * FRAME_HEIGHT;
+        out.write("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"UTF-8\">\n<title>");
+        out.write(escape(title));
+        out.write("</title>\n<style>\n"
+            + "body { font-family: sans-serif; margin: 8px; }\n"
+            + "#flame g { cursor: pointer; }\n"
+            + "#flame rect { stroke: white; stroke-width: 0.5; }\n"
+            + "#flame text { font: 11px monospace; pointer-events: none; }\n"
+            + "</style>\n</head>\n<body>\n<h3>");
+        out.write(escape(title));
+        out.write("</h3>\n<p><button id=\"reset\">Reset Zoom</button> "
+            + "<input id=\"search\" placeholder=\"Search (regular expression)\" size=\"40\"> "
+            + "<span id=\"matched\"></span></p>\n");
+        out.write("<svg id=\"flame\" xmlns=\"http://www.w3.org/2000/svg\" width=\"" + width
+            + "\" height=\"" + (graphHeight + 2) + "\">\n");
+        out.write("<g id=\"frames\" transform=\"translate(0 " + graphHeight + ")\">\n");
+        out.append(frames);
+        out.write("</g>\n</svg>\n<script>\n");
+        out.write(SCRIPT);
+        out.write("</script>\n</body>\n</html>\n");
+        frames.setLength(0);
+    }
+
+    private void layout(TreeModel model, Object root, long total) {
+        double scale = ((double) width) / total;
+        ArrayDeque<Frame> pending = new ArrayDeque<>();
+        pending.push(new Frame(root, 0, 0));
+        while (!pending.isEmpty()) {
+            Frame frame = pending.pop();
+            CallTreeNode node = (CallTreeNode) frame.node;
+            String location = frame.depth == 0 ? "all" : node.getLocation();
+            appendFrame(location, node.getCount(), total, frame.depth, frame.x, node.getCount() * scale, color(location));
+            double offset = frame.x;
+            long coalescedCount = 0;
+            int coalesced = 0;
+            int childCount = model.getChildCount(frame.node);
+            for (int i = 0; i < childCount; i++) {
+                Object child = model.getChild(frame.node, i);
+                long count = ((CallTreeNode) child).getCount();
+                double childWidth = count * scale;
+                if (childWidth >= MIN_WIDTH) {
+                    pending.push(new Frame(child, frame.depth + 1, offset));
+                    offset += childWidth;
+                } else {
+                    coalescedCount += count;
+                    coalesced++;
+                }
+            }
+            if (coalescedCount * scale >= MIN_COALESCED_WIDTH) {
+                appendFrame("[" + coalesced + " frames below 1px]", coalescedCount, total,
+                    frame.depth + 1, offset, coalescedCount * scale, "rgb(200,200,200)");
+            }
+        }
+    }
+
+    private void appendFrame(String name, long count, long total, int depth, double x, double frameWidth, String fill) {
+        maxDepth = Math.max(maxDepth, depth);
+        frames.append("<g><title>");
+        appendEscaped(frames, name);
+        frames.append('\n').append(count).append(" samples, ");
+        appendFixed(count * 100d / total);
+        frames.append("%</title><rect x=\"");
+        appendFixed(x);
+        frames.append("\" y=\"").append(-(depth + 1) * FRAME_HEIGHT).append("\" width=\"");
+        appendFixed(frameWidth);
+        frames.append("\" height=\"").append(FRAME_HEIGHT - 1).append("\" fill=\"").append(fill).append("\"/></g>\n");
+    }
+
+    /**
+     * Append {@code value} with two fraction digits, without the cost of
+     * {@link String#format(java.lang.String, java.lang.Object...)}.
+     */
+    private void appendFixed(double value) {
+        long hundredths = Math.round(value * 100);
+        frames.append(hundredths / 100).append('.');
+        long fraction = hundredths % 100;
+        if (fraction < 10) {
+            frames.append('0');
+        }
+        frames.append(fraction);
+    }
+
+    /**
+     * Warm colors derived from the name, so a method has the same color in
+     * all places and all exports.
+     */
+    private static String color(String name) {
+        int hash = name.hashCode() * 0x9E3779B1;
+        hash ^= hash >>> 15;
+        int red = 205 + (hash & 0xFF) * 50 / 255;
+        int green = ((hash >>> 8) & 0xFF) * 230 / 255;
+        int blue = ((hash >>> 16) & 0xFF) * 55 / 255;
+        return "rgb(" + red + "," + green + "," + blue + ")";
+    }
+
+    private static String escape(String text) {
+        StringBuilder sb = new StringBuilder(text.length() + 16);
+        appendEscaped(sb, text);
+        return sb.toString();
+    }
+
+    private static void appendEscaped(StringBuilder sb, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '"':
+                    sb.append("&quot;");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+    }
+
+    private static class Frame {
+
+        private final Object node;
+        private final int depth;
+        private final double x;
+
+        Frame(Object node, int depth, double x) {
+            this.node = node;
+            this.depth = depth;
+            this.x = x;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Merges identical stacks and writes them in the folded format read by
+ * flame graph tools: one line per distinct stack, the frames from the
+ * outermost to the innermost frame separated by {@code ;}, followed by a space
+ * and the sample count.
+ *
+ * <p>Stacks are identified by their symbol id sequence. The ids are kept in a
+ * single int pool and are found through an open addressing hash of the
+ * sequence, so memory is proportional to the number of distinct stacks.
+ * Stacks are written in order of first appearance.</p>
+ */
+public class FoldedStacks implements ProfileRecordVisitor {
+
+    private SymbolTable symbolTable;
+    // Symbol ids of all stacks, innermost frame first
+    private int[] pool = new int[4096];
+    private int poolSize = 0;
+    private int[] offset = new int[256];
+    private int[] depth = new int[256];
+    private int[] hash = new int[256];
+    private long[] count = new long[256];
+    private int size = 0;
+    // Stack index + 1 per slot, 0 marks an empty slot
+    private int[] index = new int[512];
+
+    @Override
+    public void visitSymbols(String binary, SymbolTable symbolTable) {
+        this.symbolTable = symbolTable;
+    }
+
+    @Override
+    public void visitRecord(long sampleCount, int[] frames, int frameCount) {
+        if (frameCount == 0) {
+            return;
+        }
+        int h = hash(frames, frameCount);
+        int mask = index.length - 1;
+        int slot = h & mask;
+        for (; index[slot] != 0; slot = (slot + 1) & mask) {
+            int candidate = index[slot] - 1;
+            if (hash[candidate] == h && equalStack(candidate, frames, frameCount)) {
+                count[candidate] += sampleCount;
+                return;
+            }
+        }
+        if (size == offset.length) {
+            int capacity = size * 2;
+            offset = Arrays.copyOf(offset, capacity);
+            depth = Arrays.copyOf(depth, capacity);
+            hash = Arrays.copyOf(hash, capacity);
+            count = Arrays.copyOf(count, capacity);
+        }
+        if (poolSize + frameCount > pool.length) {
+            pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolSize + frameCount));
+        }
+        System.arraycopy(frames, 0, pool, poolSize, frameCount);
+        offset[size] = poolSize;
+        depth[size] = frameCount;
+        hash[size] = h;
+        count[size] = sampleCount;
+        poolSize += frameCount;
+        index[slot] = ++size;
+        if (size * 2 > index.length) {
+            rehash(index.length * 2);
+        }
+    }
+
+    /**
+     * Add all traces of {@code profile}.
+     */
+    public void add(Profile profile) {
+        visitSymbols(profile.getBinary(), profile.getSymbolTable());
+        int[] frames = new int[64];
+        for (StackTrace st : profile.getStackTraces()) {
+            if (frames.length < st.getDepth()) {
+                frames = new int[st.getDepth() * 2];
+            }
+            for (int i = 0; i < st.getDepth(); i++) {
+                frames[i] = st.getSymbolId(i);
+            }
+            visitRecord(st.getCount(), frames, st.getDepth());
+        }
+    }
+
+    /**
+     * @return number of distinct stacks
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Write the stacks to {@code out}, buffering is left to the caller. A
+     * {@code ;} in a symbol name is replaced by {@code :}, as it would be
+     * taken as frame separator.
+     */
+    public void write(Writer out) throws IOException {
+        String[] names = new String[symbolTable == null ? 0 : symbolTable.size()];
+        StringBuilder line = new StringBuilder(256);
+        for (int stack = 0; stack < size; stack++) {
+            line.setLength(0);
+            int start = offset[stack];
+            for (int i = start + depth[stack] - 1; i >= start; i--) {
+                int symbolId = pool[i];
+                if (names[symbolId] == null) {
+                    names[symbolId] = symbolTable.getName(symbolId).replace(';', ':');
+                }
+                line.append(names[symbolId]);
+                line.append(i > start ? ';' : ' ');
+            }
+            line.append(count[stack]).append('\n');
+            out.append(line);
+        }
+    }
+
+    private boolean equalStack(int stack, int[] frames, int frameCount) {
+        if (depth[stack] != frameCount) {
+            return false;
+        }
+        int start = offset[stack];
+        for (int i = 0; i < frameCount; i++) {
+            if (pool[start + i] != frames[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash(int capacity) {
+        index = new int[capacity];
+        int mask = capacity - 1;
+        for (int stack = 0; stack < size; stack++) {
+            int slot = hash[stack] & mask;
+            while (index[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            index[slot] = stack + 1;
+        }
+    }
+
+    private static int hash(int[] frames, int frameCount) {
+        int h = frameCount;
+        for (int i = 0; i < frameCount; i++) {
+            h = 31 * h + frames[i];
+        }
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
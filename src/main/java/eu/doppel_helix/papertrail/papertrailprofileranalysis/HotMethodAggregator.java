@@ -0,0 +1,183 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Calculates self and total sample counts per method directly from the stack
+ * traces, without building a call tree.
+ *
+ * <p>The self count of a method is the number of samples where it is the
+ * innermost frame. The total count is the number of samples where the method
+ * is part of the trace, each method is counted at most once per trace, so
+ * recursive calls don't inflate the total.</p>
+ */
+public class HotMethodAggregator implements ProfileRecordVisitor {
+
+    private SymbolTable symbolTable;
+    private long[] self = new long[0];
+    private long[] total = new long[0];
+    // Number of the last trace, each symbol was counted for
+    private int[] lastSeen = new int[0];
+    private int traceNumber = 0;
+
+    @Override
+    public void visitSymbols(String binary, SymbolTable symbolTable) {
+        this.symbolTable = symbolTable;
+        ensureCapacity(symbolTable.size());
+    }
+
+    @Override
+    public void visitRecord(long count, int[] frames, int depth) {
+        if (depth == 0) {
+            return;
+        }
+        if (self.length < symbolTable.size()) {
+            ensureCapacity(symbolTable.size());
+        }
+        traceNumber++;
+        self[frames[0]] += count;
+        for (int i = 0; i < depth; i++) {
+            int symbolId = frames[i];
+            if (lastSeen[symbolId] != traceNumber) {
+                lastSeen[symbolId] = traceNumber;
+                total[symbolId] += count;
+            }
+        }
+    }
+
+    private void ensureCapacity(int symbols) {
+        if (self.length < symbols) {
+            self = Arrays.copyOf(self, symbols);
+            total = Arrays.copyOf(total, symbols);
+            lastSeen = Arrays.copyOf(lastSeen, symbols);
+        }
+    }
+
+    private void add(StackTrace st, int[] frames) {
+        for (int i = 0; i < st.getDepth(); i++) {
+            frames[i] = st.getSymbolId(i);
+        }
+        visitRecord(st.getCount(), frames, st.getDepth());
+    }
+
+    private void merge(HotMethodAggregator other) {
+        ensureCapacity(other.self.length);
+        for (int i = 0; i < other.self.length; i++) {
+            self[i] += other.self[i];
+            total[i] += other.total[i];
+        }
+    }
+
+    public long getSelfCount(int symbolId) {
+        return symbolId < self.length ? self[symbolId] : 0;
+    }
+
+    public long getTotalCount(int symbolId) {
+        return symbolId < total.length ? total[symbolId] : 0;
+    }
+
+    /**
+     * @return one element for each method, that was seen in at least one
+     *         trace, in symbol id order
+     */
+    public List<HotMethodElement> getHotMethods() {
+        List<HotMethodElement> result = new ArrayList<>();
+        for (int i = 0; i < total.length; i++) {
+            if (total[i] > 0) {
+                result.add(new HotMethodElement(symbolTable.getName(i), self[i], total[i]));
+            }
+        }
+        return result;
+    }
+
+    public static HotMethodAggregator aggregate(Profile pp, int threads) {
+        if (pp == null) {
+            HotMethodAggregator result = new HotMethodAggregator();
+            result.visitSymbols(null, new SymbolTable());
+            return result;
+        }
+        return aggregate(pp.getStackTraces(), pp.getSymbolTable(), threads);
+    }
+
+    /**
+     * Aggregate {@code traces} using up to {@code threads} threads. Each task
+     * accumulates a range of the traces into its own arrays, which are summed
+     * up afterwards.
+     */
+    public static HotMethodAggregator aggregate(List<StackTrace> traces, SymbolTable symbolTable, int threads) {
+        if (threads <= 1) {
+            return new AggregateTask(traces, symbolTable, 0, traces.size()).aggregateRange();
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return pool.invoke(new AggregateTask(traces, symbolTable, 0, traces.size()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static class AggregateTask extends RecursiveTask<HotMethodAggregator> {
+
+        private static final int SEQUENTIAL_THRESHOLD = 32 * 1024;
+
+        private final List<StackTrace> traces;
+        private final SymbolTable symbolTable;
+        private final int from;
+        private final int to;
+
+        AggregateTask(List<StackTrace> traces, SymbolTable symbolTable, int from, int to) {
+            this.traces = traces;
+            this.symbolTable = symbolTable;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected HotMethodAggregator compute() {
+            if (to - from > SEQUENTIAL_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                AggregateTask second = new AggregateTask(traces, symbolTable, middle, to);
+                second.fork();
+                HotMethodAggregator result = new AggregateTask(traces, symbolTable, from, middle).compute();
+                result.merge(second.join());
+                return result;
+            } else {
+                return aggregateRange();
+            }
+        }
+
+        HotMethodAggregator aggregateRange() {
+            HotMethodAggregator result = new HotMethodAggregator();
+            result.visitSymbols(null, symbolTable);
+            int[] frames = new int[64];
+            for (int i = from; i < to; i++) {
+                StackTrace st = traces.get(i);
+                if (frames.length < st.getDepth()) {
+                    frames = new int[st.getDepth() * 2];
+                }
+                result.add(st, frames);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.swing.event.EventListenerList;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.TreeModel;
+import javax.swing.tree.TreePath;
+
+/**
+ * {@link TreeModel} on top of a (possibly unfinished) tree of
+ * {@link StackTraceElementNode}s, that creates the view of a node's children
+ * when the children are first requested.
+ *
+ * <p>The children are sorted by descending count at that point. Only the
+ * large children are shown, the tail of small children is represented by a
+ * {@link MoreEntry}, that is replaced by the next page of children by
+ * {@link #expandMore(MoreEntry)}.</p>
+ */
+public class LazyCallTreeModel implements TreeModel {
+
+    /**
+     * Maximum number of children added to the view at once.
+     */
+    public static final int PAGE_SIZE = 100;
+    /**
+     * Number of children shown irrespective of their count.
+     */
+    private static final int MIN_VISIBLE = 10;
+    /**
+     * Children below this fraction of the parent's count are only shown
+     * through the {@link MoreEntry}.
+     */
+    private static final double MIN_FRACTION = 0.001;
+
+    private final EventListenerList listenerList = new EventListenerList();
+    private final Entry root;
+    private final long total;
+
+    public LazyCallTreeModel(StackTraceElementNode rootNode) {
+        this.total = rootNode.getCount();
+        this.root = new Entry(this, null, rootNode);
+    }
+
+    @Override
+    public Entry getRoot() {
+        return root;
+    }
+
+    @Override
+    public Object getChild(Object parent, int index) {
+        return ((Entry) parent).getChildren().get(index);
+    }
+
+    @Override
+    public int getChildCount(Object parent) {
+        if (parent instanceof Entry) {
+            return ((Entry) parent).getChildren().size();
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean isLeaf(Object node) {
+        if (node instanceof Entry) {
+            // Answered without creating the children
+            return ((Entry) node).getNode().getChildCount() == 0;
+        }
+        return true;
+    }
+
+    @Override
+    public int getIndexOfChild(Object parent, Object child) {
+        if (!(parent instanceof Entry) || child == null) {
+            return -1;
+        }
+        return ((Entry) parent).getChildren().indexOf(child);
+    }
+
+    /**
+     * Replace {@code more} by the next page of children of its parent.
+     */
+    public void expandMore(MoreEntry more) {
+        Entry parent = more.getParent();
+        List<CallTreeNode> children = parent.getChildren();
+        int index = children.indexOf(more);
+        if (index < 0) {
+            return;
+        }
+        TreePath parentPath = parent.getPath();
+        children.remove(index);
+        fireTreeNodesRemoved(new TreeModelEvent(this, parentPath, new int[]{index}, new Object[]{more}));
+        int end = Math.min(parent.sortedChildren.length, parent.shown + PAGE_SIZE);
+        int first = children.size();
+        parent.addChildren(end);
+        int[] indices = new int[children.size() - first];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = first + i;
+        }
+        fireTreeNodesInserted(new TreeModelEvent(this, parentPath, indices, children.subList(first, children.size()).toArray()));
+    }
+
+    /**
+     * Path to the entry of {@code node}, the node is located by the symbols
+     * on its path. Pages of children, that hide an entry on the way, are
+     * expanded.
+     *
+     * @return the path or {@code null} if the tree has no node on the path of
+     *         {@code node}
+     */
+    public TreePath getPath(StackTraceElementNode node) {
+        // The path is resolved by symbol ids, the parents of subtrees shared
+        // between RollingProfile snapshots belong to an older snapshot
+        List<Integer> symbolPath = new ArrayList<>();
+        for (StackTraceElementNode n = node; n != root.getNode() && n.getParent() != null; n = n.getParent()) {
+            symbolPath.add(n.getSymbolId());
+        }
+        Entry entry = root;
+        for (int i = symbolPath.size() - 1; i >= 0; i--) {
+            entry = findChild(entry, symbolPath.get(i));
+            if (entry == null) {
+                return null;
+            }
+        }
+        return entry.getPath();
+    }
+
+    private Entry findChild(Entry parent, int symbolId) {
+        while (true) {
+            List<CallTreeNode> children = parent.getChildren();
+            for (CallTreeNode child : children) {
+                if (child instanceof Entry && ((Entry) child).getNode().getSymbolId() == symbolId) {
+                    return (Entry) child;
+                }
+            }
+            if (children.isEmpty() || !(children.get(children.size() - 1) instanceof MoreEntry)) {
+                return null;
+            }
+            expandMore((MoreEntry) children.get(children.size() - 1));
+        }
+    }
+
+    @Override
+    public void valueForPathChanged(TreePath path, Object newValue) {
+        // The call tree is read-only
+    }
+
+    @Override
+    public void addTreeModelListener(TreeModelListener l) {
+        listenerList.add(TreeModelListener.class, l);
+    }
+
+    @Override
+    public void removeTreeModelListener(TreeModelListener l) {
+        listenerList.remove(TreeModelListener.class, l);
+    }
+
+    private void fireTreeNodesRemoved(TreeModelEvent event) {
+        for (TreeModelListener listener : listenerList.getListeners(TreeModelListener.class)) {
+            listener.treeNodesRemoved(event);
+        }
+    }
+
+    private void fireTreeNodesInserted(TreeModelEvent event) {
+        for (TreeModelListener listener : listenerList.getListeners(TreeModelListener.class)) {
+            listener.treeNodesInserted(event);
+        }
+    }
+
+    /**
+     * View of a single call tree node.
+     */
+    public static final class Entry implements CallTreeNode {
+
+        private final LazyCallTreeModel model;
+        private final Entry parent;
+        private final StackTraceElementNode node;
+        private StackTraceElementNode[] sortedChildren;
+        private List<CallTreeNode> children;
+        private int shown;
+        // Sums over the children, that are not shown yet
+        private long remainingCount;
+        private long remainingSelf;
+
+        private Entry(LazyCallTreeModel model, Entry parent, StackTraceElementNode node) {
+            this.model = model;
+            this.parent = parent;
+            this.node = node;
+        }
+
+        public Entry getParent() {
+            return parent;
+        }
+
+        public StackTraceElementNode getNode() {
+            return node;
+        }
+
+        List<CallTreeNode> getChildren() {
+            if (children == null) {
+                List<StackTraceElementNode> nodeChildren = node.getChildren();
+                sortedChildren = nodeChildren.toArray(new StackTraceElementNode[nodeChildren.size()]);
+                // Stable sort, so the result matches a finished tree
+                Arrays.sort(sortedChildren, StackTraceSummarizer.BY_COUNT_DESCENDING);
+                for (StackTraceElementNode child : sortedChildren) {
+                    remainingCount += child.getCount();
+                    remainingSelf += child.getSelfCount();
+                }
+                children = new ArrayList<>();
+                int end = 0;
+                long minCount = (long) Math.ceil(node.getCount() * MIN_FRACTION);
+                while (end < sortedChildren.length && end < PAGE_SIZE
+                    && (end < MIN_VISIBLE || sortedChildren[end].getCount() >= minCount)) {
+                    end++;
+                }
+                addChildren(end);
+            }
+            return children;
+        }
+
+        private void addChildren(int end) {
+            for (; shown < end; shown++) {
+                StackTraceElementNode child = sortedChildren[shown];
+                remainingCount -= child.getCount();
+                remainingSelf -= child.getSelfCount();
+                children.add(new Entry(model, this, child));
+            }
+            if (shown < sortedChildren.length) {
+                children.add(new MoreEntry(this, sortedChildren.length - shown, remainingCount, remainingSelf));
+            }
+        }
+
+        TreePath getPath() {
+            List<Object> path = new ArrayList<>();
+            for (Entry e = this; e != null; e = e.parent) {
+                path.add(e);
+            }
+            Object[] elements = new Object[path.size()];
+            for (int i = 0; i < elements.length; i++) {
+                elements[i] = path.get(elements.length - 1 - i);
+            }
+            return new TreePath(elements);
+        }
+
+        @Override
+        public String getLocation() {
+            return node.getLocation();
+        }
+
+        @Override
+        public long getCount() {
+            return node.getCount();
+        }
+
+        @Override
+        public long getTotal() {
+            return model.total;
+        }
+
+        @Override
+        public long getSelfCount() {
+            return node.getSelfCount();
+        }
+
+        @Override
+        public String toString() {
+            return getLocation();
+        }
+    }
+
+    /**
+     * Placeholder for the children of an entry, that are not yet shown.
+     */
+    public static final class MoreEntry implements CallTreeNode {
+
+        private final Entry parent;
+        private final int remaining;
+        private final long count;
+        private final long selfCount;
+
+        private MoreEntry(Entry parent, int remaining, long count, long selfCount) {
+            this.parent = parent;
+            this.remaining = remaining;
+            this.count = count;
+            this.selfCount = selfCount;
+        }
+
+        public Entry getParent() {
+            return parent;
+        }
+
+        public int getRemaining() {
+            return remaining;
+        }
+
+        @Override
+        public String getLocation() {
+            long total = getTotal();
+            return String.format("%d more (%.2f%%)", remaining, total == 0 ? 0d : count * 100d / total);
+        }
+
+        @Override
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public long getTotal() {
+            return parent.getTotal();
+        }
+
+        @Override
+        public long getSelfCount() {
+            return selfCount;
+        }
+
+        @Override
+        public String toString() {
+            return getLocation();
+        }
+    }
+}
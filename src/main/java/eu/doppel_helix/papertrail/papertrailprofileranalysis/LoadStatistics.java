@@ -0,0 +1,349 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Timings and sizes of a single load, an instance is passed to the parser
+ * the same way as the {@link ProgressMonitor}.
+ *
+ * <p>The parser reports the time spent in the symbol and the profile section,
+ * the bytes read and the decoded records. The callers building the call tree
+ * and the hot method table report these phases and the resulting sizes. When
+ * the call tree is built while the records are decoded, its time is part of
+ * the profile section.</p>
+ *
+ * <p>The counters can be updated concurrently, as several files of one load
+ * are parsed at once. The last completed load is handed to
+ * {@link #publish(LoadStatistics)} and shown by the MBean registered with
+ * {@link #registerMBean()}.</p>
+ */
+public final class LoadStatistics implements LoadStatisticsMBean {
+
+    private static final Logger LOG = Logger.getLogger(LoadStatistics.class.getName());
+    public static final String OBJECT_NAME = "eu.doppel_helix.papertrail:type=LoadStatistics";
+    private static volatile LoadStatistics published = new LoadStatistics();
+
+    // Rough per object sizes for a 64 bit VM with compressed oops, used for
+    // the retained heap estimate
+    private static final int TRACE_BYTES = 48;
+    private static final int FRAME_BYTES = 4;
+    private static final int NODE_BYTES = 112;
+    private static final int SYMBOL_BYTES = 128;
+
+    public enum Phase {
+        SYMBOL_SECTION("Symbol section"),
+        PROFILE_SECTION("Profile section"),
+        CALL_TREE("Call tree"),
+        HOT_METHODS("Hot methods");
+
+        private final String displayName;
+
+        Phase(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    private final LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder records = new LongAdder();
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder frames = new LongAdder();
+    private volatile int symbols;
+    private volatile long nodes;
+
+    public LoadStatistics() {
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Show {@code statistics} through the MBean, called once the load and
+     * the views built from it are complete.
+     */
+    public static void publish(LoadStatistics statistics) {
+        published = statistics;
+    }
+
+    /**
+     * Register the published statistics with the platform MBean server under
+     * {@value #OBJECT_NAME}, repeated calls are ignored.
+     */
+    public static synchronized void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new StandardMBean(new Published(), LoadStatisticsMBean.class), name);
+            }
+        } catch (JMException ex) {
+            LOG.log(Level.WARNING, "Failed to register load statistics", ex);
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder adder : phaseNanos) {
+            adder.reset();
+        }
+        bytesRead.reset();
+        records.reset();
+        samples.reset();
+        frames.reset();
+        symbols = 0;
+        nodes = 0;
+    }
+
+    public void addPhase(Phase phase, long nanos) {
+        phaseNanos[phase.ordinal()].add(nanos);
+    }
+
+    /**
+     * Run {@code task} and add its wall time to {@code phase}.
+     */
+    public <T> T time(Phase phase, Supplier<T> task) {
+        long start = System.nanoTime();
+        try {
+            return task.get();
+        } finally {
+            addPhase(phase, System.nanoTime() - start);
+        }
+    }
+
+    public void addBytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    /**
+     * @param recordCount number of decoded records
+     * @param sampleCount sum of the sample counts of the records
+     * @param frameCount  sum of the depths of the records
+     */
+    public void addRecords(long recordCount, long sampleCount, long frameCount) {
+        records.add(recordCount);
+        samples.add(sampleCount);
+        frames.add(frameCount);
+    }
+
+    public void setSymbols(int symbols) {
+        this.symbols = symbols;
+    }
+
+    public void setNodes(long nodes) {
+        this.nodes = nodes;
+    }
+
+    public long getPhaseNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()].sum();
+    }
+
+    @Override
+    public long getSymbolSectionMillis() {
+        return getPhaseNanos(Phase.SYMBOL_SECTION) / 1_000_000;
+    }
+
+    @Override
+    public long getProfileSectionMillis() {
+        return getPhaseNanos(Phase.PROFILE_SECTION) / 1_000_000;
+    }
+
+    @Override
+    public long getCallTreeMillis() {
+        return getPhaseNanos(Phase.CALL_TREE) / 1_000_000;
+    }
+
+    @Override
+    public long getHotMethodsMillis() {
+        return getPhaseNanos(Phase.HOT_METHODS) / 1_000_000;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getRecords() {
+        return records.sum();
+    }
+
+    @Override
+    public long getSamples() {
+        return samples.sum();
+    }
+
+    /**
+     * @return records decoded per second of profile section time, the
+     *         times of files parsed concurrently are summed
+     */
+    @Override
+    public long getRecordsPerSecond() {
+        long nanos = getPhaseNanos(Phase.PROFILE_SECTION);
+        return nanos == 0 ? 0 : (long) (getRecords() * 1e9 / nanos);
+    }
+
+    @Override
+    public int getSymbols() {
+        return symbols;
+    }
+
+    @Override
+    public long getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return estimated heap size of the stack traces, the symbol table and
+     *         the call tree in bytes, derived from their element counts
+     */
+    @Override
+    public long getRetainedHeapEstimate() {
+        return getRecords() * TRACE_BYTES
+            + frames.sum() * FRAME_BYTES
+            + (long) symbols * SYMBOL_BYTES
+            + nodes * NODE_BYTES;
+    }
+
+    /**
+     * @return single line summary for a status bar
+     */
+    public String getSummary() {
+        return String.format("%,d samples, %,d records, %,d symbols, %,d nodes | %d MiB read | "
+            + "symbols %d ms, profile %d ms, call tree %d ms, hot methods %d ms | ~%d MiB heap",
+            getSamples(), getRecords(), getSymbols(), getNodes(), getBytesRead() >> 20,
+            getSymbolSectionMillis(), getProfileSectionMillis(), getCallTreeMillis(), getHotMethodsMillis(),
+            getRetainedHeapEstimate() >> 20);
+    }
+
+    /**
+     * @return multi line report for the command line
+     */
+    public String format() {
+        StringBuilder sb = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            sb.append(String.format("%-16s %10d ms%n", phase.getDisplayName(), getPhaseNanos(phase) / 1_000_000));
+        }
+        sb.append(String.format("%-16s %,13d%n", "Bytes read", getBytesRead()));
+        sb.append(String.format("%-16s %,13d%n", "Records", getRecords()));
+        sb.append(String.format("%-16s %,13d%n", "Samples", getSamples()));
+        sb.append(String.format("%-16s %,13d%n", "Records/s", getRecordsPerSecond()));
+        sb.append(String.format("%-16s %,13d%n", "Symbols", getSymbols()));
+        sb.append(String.format("%-16s %,13d%n", "Nodes", getNodes()));
+        sb.append(String.format("%-16s %,10d MiB%n", "Retained heap", getRetainedHeapEstimate() >> 20));
+        return sb.toString();
+    }
+
+    /**
+     * @return number of nodes of the call tree below {@code root}, including
+     *         {@code root}
+     */
+    public static long countNodes(StackTraceElementNode root) {
+        long result = 0;
+        ArrayDeque<StackTraceElementNode> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            StackTraceElementNode node = pending.pop();
+            result++;
+            for (int i = 0; i < node.getChildCount(); i++) {
+                pending.push(node.getChildAt(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Delegates to the statistics published last, so the MBean stays
+     * registered while the loads change.
+     */
+    private static final class Published implements LoadStatisticsMBean {
+
+        @Override
+        public long getSymbolSectionMillis() {
+            return published.getSymbolSectionMillis();
+        }
+
+        @Override
+        public long getProfileSectionMillis() {
+            return published.getProfileSectionMillis();
+        }
+
+        @Override
+        public long getCallTreeMillis() {
+            return published.getCallTreeMillis();
+        }
+
+        @Override
+        public long getHotMethodsMillis() {
+            return published.getHotMethodsMillis();
+        }
+
+        @Override
+        public long getBytesRead() {
+            return published.getBytesRead();
+        }
+
+        @Override
+        public long getRecords() {
+            return published.getRecords();
+        }
+
+        @Override
+        public long getSamples() {
+            return published.getSamples();
+        }
+
+        @Override
+        public long getRecordsPerSecond() {
+            return published.getRecordsPerSecond();
+        }
+
+        @Override
+        public int getSymbols() {
+            return published.getSymbols();
+        }
+
+        @Override
+        public long getNodes() {
+            return published.getNodes();
+        }
+
+        @Override
+        public long getRetainedHeapEstimate() {
+            return published.getRetainedHeapEstimate();
+        }
+
+        @Override
+        public void reset() {
+            published.reset();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Little endian array of 64bit values, that is backed by a memory mapped
+ * region of a file.
+ *
+ * <p>A single mapping is limited to 2 GB, so the region is split into windows
+ * of {@code 2^WINDOW_SHIFT} values, each mapped separately. Values are read
+ * directly from the mapped windows, nothing is copied to the heap. Absolute
+ * reads don't modify state, so an instance can be shared between threads.</p>
+ */
+public final class MappedLongArray {
+
+    private static final int WINDOW_SHIFT = 27;
+    private static final long WINDOW_MASK = (1L << WINDOW_SHIFT) - 1;
+
+    private final LongBuffer[] windows;
+    private final long size;
+
+    private MappedLongArray(LongBuffer[] windows, long size) {
+        this.windows = windows;
+        this.size = size;
+    }
+
+    /**
+     * Map {@code count} 64bit values starting at byte {@code offset} of
+     * {@code channel}.
+     */
+    public static MappedLongArray map(FileChannel channel, long offset, long count) throws IOException {
+        int windowCount = (int) ((count + WINDOW_MASK) >>> WINDOW_SHIFT);
+        LongBuffer[] windows = new LongBuffer[windowCount];
+        for (int i = 0; i < windowCount; i++) {
+            long firstValue = ((long) i) << WINDOW_SHIFT;
+            long values = Math.min(count - firstValue, 1L << WINDOW_SHIFT);
+            windows[i] = channel
+                .map(FileChannel.MapMode.READ_ONLY, offset + firstValue * Long.BYTES, values * Long.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .asLongBuffer();
+        }
+        return new MappedLongArray(windows, count);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public long get(long index) {
+        return windows[(int) (index >>> WINDOW_SHIFT)].get((int) (index & WINDOW_MASK));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sequential reader for a profile file based on memory mapped windows.
+ *
+ * <p>The textual header is read byte by byte through {@link #read()}, the
+ * binary profile section that follows is exposed as a {@link MappedLongArray}
+ * via {@link #mapLongs()}.</p>
+ */
+public final class MappedProfileReader implements Closeable {
+
+    private static final long BYTE_WINDOW_SIZE = 64L * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+
+    public MappedProfileReader(Path input) throws IOException {
+        this.channel = FileChannel.open(input, StandardOpenOption.READ);
+        this.size = channel.size();
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public long position() {
+        return position;
+    }
+
+    /**
+     * @return the next byte as an unsigned value or -1 if EOF was reached
+     */
+    public int read() throws IOException {
+        if (position >= size) {
+            return -1;
+        }
+        if (window == null || position >= windowStart + window.capacity()) {
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(BYTE_WINDOW_SIZE, size - windowStart));
+        }
+        return window.get((int) (position++ - windowStart)) & 0xFF;
+    }
+
+    /**
+     * Map the remainder of the file, starting at the current position, as
+     * 64bit values. Trailing bytes, that don't form a complete value, are
+     * ignored.
+     */
+    public MappedLongArray mapLongs() throws IOException {
+        window = null;
+        return MappedLongArray.map(channel, position, (size - position) / Long.BYTES);
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Profile aggregated from several profile files, for example one file per
+ * worker process.
+ *
+ * <p>The files are parsed concurrently. As the addresses differ between the
+ * binaries, symbols are unified by name. The traces of each file are
+ * contiguous in {@link #getStackTraces()}, the range and the sample count of
+ * each file are available from {@link #getSources()}.</p>
+ */
+public class MergedProfile implements Profile {
+
+    private final String binary;
+    private final SymbolTable symbolTable;
+    private final List<StackTrace> stackTraces;
+    private final List<Source> sources;
+
+    private MergedProfile(String binary, SymbolTable symbolTable, List<StackTrace> stackTraces, List<Source> sources) {
+        this.binary = binary;
+        this.symbolTable = symbolTable;
+        this.stackTraces = Collections.unmodifiableList(stackTraces);
+        this.sources = Collections.unmodifiableList(sources);
+    }
+
+    @Override
+    public String getBinary() {
+        return binary;
+    }
+
+    @Override
+    public SymbolTable getSymbolTable() {
+        return symbolTable;
+    }
+
+    @Override
+    public List<StackTrace> getStackTraces() {
+        return stackTraces;
+    }
+
+    public List<Source> getSources() {
+        return sources;
+    }
+
+    /**
+     * Parse a single file with {@code threads} threads or merge several files
+     * using {@link #load(java.util.List, java.nio.charset.Charset, int)}.
+     */
+    public static Profile open(List<Path> inputs, Charset charsetOfData, int threads) throws IOException {
+        return open(inputs, charsetOfData, threads, null);
+    }
+
+    /**
+     * Same as {@link #open(java.util.List, java.nio.charset.Charset, int)},
+     * the files are read through {@code cache} if it is not {@code null}.
+     */
+    public static Profile open(List<Path> inputs, Charset charsetOfData, int threads, ProfileCache cache) throws IOException {
+        return open(inputs, charsetOfData, threads, cache, ProgressMonitor.NONE);
+    }
+
+    /**
+     * Same as {@link #open(java.util.List, java.nio.charset.Charset, int, ProfileCache)},
+     * the progress over all files is reported to {@code monitor} and the
+     * load is aborted with a {@link CancellationException} once it is
+     * cancelled.
+     */
+    public static Profile open(List<Path> inputs, Charset charsetOfData, int threads, ProfileCache cache, ProgressMonitor monitor) throws IOException {
+        return open(inputs, charsetOfData, threads, cache, monitor, new LoadStatistics());
+    }
+
+    /**
+     * Same as {@link #open(java.util.List, java.nio.charset.Charset, int, ProfileCache, ProgressMonitor)},
+     * the timings and sizes of all files are added to {@code statistics}.
+     */
+    public static Profile open(List<Path> inputs, Charset charsetOfData, int threads, ProfileCache cache, ProgressMonitor monitor, LoadStatistics statistics) throws IOException {
+        if (inputs.size() == 1) {
+            if (cache != null) {
+                return cache.open(inputs.get(0), charsetOfData, threads, monitor, statistics);
+            }
+            return new PapertrailParser(inputs.get(0), charsetOfData, threads, monitor, statistics);
+        } else {
+            return load(inputs, charsetOfData, threads, cache, monitor, statistics);
+        }
+    }
+
+    /**
+     * Parse {@code inputs} concurrently, one file per available processor,
+     * and merge them into a single profile. Each file is decoded with
+     * {@code threads} threads.
+     */
+    public static MergedProfile load(List<Path> inputs, Charset charsetOfData, int threads) throws IOException {
+        return load(inputs, charsetOfData, threads, null, ProgressMonitor.NONE, new LoadStatistics());
+    }
+
+    private static MergedProfile load(List<Path> inputs, Charset charsetOfData, int threads, ProfileCache cache, ProgressMonitor monitor, LoadStatistics statistics) throws IOException {
+        // The file level pool is independent of the decode threads, so
+        // files are parsed concurrently even with a single decode thread
+        int fileThreads = Math.max(1, Math.min(inputs.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(fileThreads);
+        try {
+            List<Future<Profile>> parsing = new ArrayList<>(inputs.size());
+            for (Path input : inputs) {
+                parsing.add(executor.submit(() -> cache != null
+                    ? cache.open(input, charsetOfData, threads, monitor, statistics)
+                    : new PapertrailParser(input, charsetOfData, threads, monitor, statistics)));
+            }
+
+            // The merged table is only modified from this thread, in input
+            // order, so the ids are stable and the remapping can run
+            // concurrently with the parsing of the remaining files. Once a
+            // file is remapped only the remapped copy is referenced.
+            SymbolTable symbolTable = new SymbolTable();
+            List<Future<List<StackTrace>>> remapping = new ArrayList<>(inputs.size());
+            List<String> binaries = new ArrayList<>(inputs.size());
+            for (int i = 0; i < inputs.size(); i++) {
+                Profile parser = getResult(parsing.get(i));
+                parsing.set(i, null);
+                monitor.checkCancelled();
+                SymbolTable fileTable = parser.getSymbolTable();
+                int[] mapping = new int[fileTable.size()];
+                for (int j = 0; j < mapping.length; j++) {
+                    mapping[j] = symbolTable.intern(fileTable.getName(j));
+                }
+                binaries.add(parser.getBinary());
+                List<StackTrace> fileTraces = parser.getStackTraces();
+                remapping.add(executor.submit(() -> remap(fileTraces, mapping, symbolTable)));
+            }
+
+            List<StackTrace> stackTraces = new ArrayList<>();
+            List<Source> sources = new ArrayList<>(inputs.size());
+            for (int i = 0; i < inputs.size(); i++) {
+                List<StackTrace> fileTraces = getResult(remapping.get(i));
+                remapping.set(i, null);
+                long samples = 0;
+                for (StackTrace st : fileTraces) {
+                    samples += st.getCount();
+                }
+                sources.add(new Source(inputs.get(i), binaries.get(i), stackTraces.size(), fileTraces.size(), samples));
+                stackTraces.addAll(fileTraces);
+            }
+            String binary = sources.isEmpty() ? null : sources.get(0).getBinary();
+            return new MergedProfile(binary, symbolTable, stackTraces, sources);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<StackTrace> remap(List<StackTrace> traces, int[] mapping, SymbolTable symbolTable) {
+        List<StackTrace> result = new ArrayList<>(traces.size());
+        int[] frames = new int[64];
+        for (StackTrace st : traces) {
+            if (frames.length < st.getDepth()) {
+                frames = new int[st.getDepth() * 2];
+            }
+            for (int i = 0; i < st.getDepth(); i++) {
+                frames[i] = mapping[st.getSymbolId(i)];
+            }
+            result.add(new StackTrace(st.getCount(), symbolTable, frames, st.getDepth()));
+        }
+        return result;
+    }
+
+    private static <T> T getResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading profiles", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof CancellationException) {
+                throw (CancellationException) ex.getCause();
+            } else if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * Expand the input arguments into a list of profile files. Directories
+     * are replaced by the {@code *.pprof} files they contain, names with
+     * glob characters (<code>*?[{</code>) are matched against the files in
+     * their parent directory.
+     */
+    public static List<Path> resolveInputs(List<File> arguments) throws IOException {
+        List<Path> result = new ArrayList<>();
+        for (File argument : arguments) {
+            String name = argument.getName();
+            if (name.matches(".*[*?\\[{].*")) {
+                File directory = argument.getAbsoluteFile().getParentFile();
+                addMatching(result, directory.toPath(), name);
+            } else if (argument.isDirectory()) {
+                addMatching(result, argument.toPath(), "*.pprof");
+            } else {
+                result.add(argument.toPath());
+            }
+        }
+        return result;
+    }
+
+    private static void addMatching(List<Path> result, Path directory, String glob) throws IOException {
+        List<Path> matches = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory, glob)) {
+            for (Path p : ds) {
+                if (Files.isRegularFile(p)) {
+                    matches.add(p);
+                }
+            }
+        }
+        Collections.sort(matches);
+        result.addAll(matches);
+    }
+
+    /**
+     * A single input file of a merged profile.
+     */
+    public static class Source {
+
+        private final Path path;
+        private final String binary;
+        private final int firstTrace;
+        private final int traceCount;
+        private final long sampleCount;
+
+        public Source(Path path, String binary, int firstTrace, int traceCount, long sampleCount) {
+            this.path = path;
+            this.binary = binary;
+            this.firstTrace = firstTrace;
+            this.traceCount = traceCount;
+            this.sampleCount = sampleCount;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public String getBinary() {
+            return binary;
+        }
+
+        /**
+         * @return index of the first trace of this file in
+         *         {@link MergedProfile#getStackTraces()}
+         */
+        public int getFirstTrace() {
+            return firstTrace;
+        }
+
+        public int getTraceCount() {
+            return traceCount;
+        }
+
+        public long getSampleCount() {
+            return sampleCount;
+        }
+    }
+}
@@ -15,10 +15,24 @@
  */
 package eu.doppel_helix.papertrail.papertrailprofileranalysis;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import javax.swing.tree.DefaultTreeModel;
+import javax.swing.tree.TreeModel;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.Argument;
@@ -51,51 +65,472 @@ public class PapertrailAnalyser {
         parser.addArgument("-f", "--file")
             .dest("file")
             .metavar("file")
-            .help("File to parse as papertrail profiler file (pprof)")
-            .type(File.class);
+            .help("File to parse as papertrail profiler file (pprof), can be repeated. "
+                + "Directories and glob patterns are expanded, multiple files are merged")
+            .type(File.class)
+            .action(Arguments.append());
         parser.addArgument("-t", "--text")
             .dest("textOutput")
             .action(Arguments.storeTrue());
+        parser.addArgument("--folded")
+            .dest("folded")
+            .help("Print the merged stacks in the folded format used by flame graph tools, "
+                + "replaces the other text output")
+            .action(Arguments.storeTrue());
+        parser.addArgument("--flame-graph")
+            .dest("flameGraph")
+            .metavar("file")
+            .help("Write the call tree as interactive HTML flame graph to file")
+            .type(File.class);
+        parser.addArgument("--pprof")
+            .dest("pprof")
+            .metavar("file")
+            .help("Write the profile in the gzip compressed profile.proto format to file")
+            .type(File.class);
+        parser.addArgument("--watch")
+            .dest("watch")
+            .metavar("directory")
+            .help("Watch the directory for new and updated *.pprof files and aggregate them. "
+                + "The text output is printed again after each change")
+            .type(File.class);
+        parser.addArgument("--threads")
+            .dest("threads")
+            .metavar("threads")
+            .help("Number of threads used to decode the profile section")
+            .type(Integer.class)
+            .choices(Arguments.range(1, Integer.MAX_VALUE))
+            .setDefault(1);
+        parser.addArgument("--compact")
+            .dest("compact")
+            .help("Store the call tree in a compact array based structure")
+            .action(Arguments.storeTrue());
+        parser.addArgument("--hot-methods")
+            .dest("hotMethods")
+            .help("Print self and total sample count per method")
+            .action(Arguments.storeTrue());
+        parser.addArgument("--diff")
+            .dest("baseline")
+            .metavar("baseline")
+            .help("Baseline profile to compare the files against, can be repeated. "
+                + "The text output shows the difference instead of the call tree")
+            .type(File.class)
+            .action(Arguments.append());
+        parser.addArgument("--max-depth")
+            .dest("maxDepth")
+            .metavar("depth")
+            .help("Maximum depth of the call tree printed by the text output")
+            .type(Integer.class)
+            .choices(Arguments.range(1, Integer.MAX_VALUE))
+            .setDefault(Integer.MAX_VALUE);
+        parser.addArgument("--min-percent")
+            .dest("minPercent")
+            .metavar("percent")
+            .help("Skip call tree nodes with a smaller share of the samples in the text output")
+            .type(Double.class)
+            .choices(Arguments.range(0d, 100d))
+            .setDefault(0d);
+        parser.addArgument("--prune-percent")
+            .dest("prunePercent")
+            .metavar("percent")
+            .help("Fold call tree paths with a smaller share of the samples into an <other> node while aggregating")
+            .type(Double.class)
+            .choices(Arguments.range(0d, 100d))
+            .setDefault(0d);
+        parser.addArgument("--max-nodes")
+            .dest("maxNodes")
+            .metavar("count")
+            .help("Maximum number of call tree nodes, the smallest paths are folded into <other> nodes")
+            .type(Integer.class)
+            .choices(Arguments.range(2, Integer.MAX_VALUE))
+            .setDefault(Integer.MAX_VALUE);
+        parser.addArgument("--stats")
+            .dest("stats")
+            .help("Print timings, throughput and sizes of the load phases to stderr")
+            .action(Arguments.storeTrue());
+        parser.addArgument("--cache-dir")
+            .dest("cacheDir")
+            .metavar("directory")
+            .help("Directory for the cache of summarized profiles, enables the cache")
+            .type(File.class);
+        parser.addArgument("--cache-size")
+            .dest("cacheSize")
+            .metavar("MiB")
+            .help("Maximum size of the profile cache")
+            .type(Long.class)
+            .choices(Arguments.range(1L, Long.MAX_VALUE))
+            .setDefault(1024L);
         Namespace namespace = parser.parseArgsOrFail(argv);
-        Charset selectedCharset = namespace.<Charset>get("charset");
-        File file = namespace.<File>get("file");
-        if (namespace.<Boolean>get("textOutput")) {
-            parseCLI(parser, file, selectedCharset);
+        File cacheDir = namespace.get("cacheDir");
+        ProfileCache cache = cacheDir == null ? null : new ProfileCache(cacheDir.toPath(), namespace.getLong("cacheSize") * 1024 * 1024);
+        CallTreeLimits limits = new CallTreeLimits(namespace.getDouble("prunePercent") / 100, namespace.getInt("maxNodes"));
+        validateOptions(parser, namespace, limits);
+        File watchDirectory = namespace.get("watch");
+        if (watchDirectory != null && isCommandLine(namespace)) {
+            LoadStatistics.registerMBean();
+            watchCLI(parser, namespace, watchDirectory, cache, limits);
+        } else if (isCommandLine(namespace)) {
+            LoadStatistics statistics = new LoadStatistics();
+            parseCLI(parser, namespace, cache, limits, statistics);
+            if (namespace.getBoolean("stats")) {
+                printStatistics(statistics);
+            }
         } else {
-            PapertrailUI.start(file, selectedCharset);
+            LoadStatistics.registerMBean();
+            PapertrailUI.start(namespace.<File>getList("file"), namespace.<File>getList("baseline"), watchDirectory,
+                namespace.<Charset>get("charset"), namespace.getInt("threads"), namespace.getBoolean("compact"), cache, limits);
         }
     }
 
+    /**
+     * @return {@code true} if an output is requested, otherwise the UI is
+     *         started
+     */
+    private static boolean isCommandLine(Namespace namespace) {
+        return namespace.getBoolean("textOutput") || namespace.getBoolean("hotMethods") || namespace.getBoolean("folded")
+            || namespace.get("flameGraph") != null || namespace.get("pprof") != null;
+    }
+
+    /**
+     * Reject combinations of options, where one of them would be silently
+     * ignored by the selected output.
+     */
+    private static void validateOptions(ArgumentParser parser, Namespace namespace, CallTreeLimits limits) {
+        List<File> baselineFiles = namespace.<File>getList("baseline");
+        boolean diff = baselineFiles != null && ! baselineFiles.isEmpty();
+        String error = null;
+        if (namespace.getBoolean("compact") && ! limits.isUnlimited()) {
+            error = "pruning is not supported for the compact call tree";
+        } else if (isCommandLine(namespace) && namespace.get("watch") != null) {
+            // The watch mode only prints the text output and hot methods
+            if (diff) {
+                error = "--watch is not supported together with --diff";
+            } else if (namespace.getBoolean("folded")) {
+                error = "--folded is not supported together with --watch";
+            } else if (namespace.get("flameGraph") != null) {
+                error = "--flame-graph is not supported together with --watch";
+            } else if (namespace.get("pprof") != null) {
+                error = "--pprof is not supported together with --watch";
+            }
+        } else if (isCommandLine(namespace) && diff) {
+            // The diff is only printed as text
+            if (namespace.getBoolean("folded")) {
+                error = "--folded is not supported together with --diff";
+            } else if (namespace.get("flameGraph") != null) {
+                error = "--flame-graph is not supported together with --diff";
+            } else if (! limits.isUnlimited()) {
+                error = "pruning is not supported together with --diff";
+            } else if (! namespace.getBoolean("textOutput")) {
+                error = "--diff requires -t on the command line";
+            }
+        }
+        if (error != null) {
+            parser.handleError(new ArgumentParserException(error, parser));
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Print the folded stacks, the diff or the call tree and hot methods of
+     * the files.
+     */
     @SuppressWarnings("UseOfSystemOutOrSystemErr")
-    private static void parseCLI(ArgumentParser parser, File file, Charset selectedCharset) {
-        if (file == null) {
+    private static void parseCLI(ArgumentParser parser, Namespace namespace, ProfileCache cache, CallTreeLimits limits, LoadStatistics statistics) {
+        List<File> files = namespace.<File>getList("file");
+        List<File> baselineFiles = namespace.<File>getList("baseline");
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, Charset.defaultCharset()), 1 << 16));
+        if (files == null || files.isEmpty()) {
             parser.handleError(new ArgumentParserException("file must be specified when run on CLI", parser));
             System.exit(1);
         }
+        List<Path> inputs = null;
         try {
-            PapertrailParser papertrailParser = new PapertrailParser(file.toPath(), selectedCharset);
-            StackTraceElementNode root = StackTraceSummarizer.summarize(papertrailParser);
-            for(StackTraceElementNode child: root.getChildren()) {
-                printNode(child, "");
+            inputs = resolveInputs(parser, files);
+            if (namespace.getBoolean("folded")) {
+                printFolded(namespace, inputs, cache, statistics, out);
+            } else if (baselineFiles != null && ! baselineFiles.isEmpty()) {
+                printDiff(namespace, resolveInputs(parser, baselineFiles), inputs, cache, statistics, out);
+            } else {
+                // A single file is decoded while it is read, unless the
+                // options need the stack traces
+                Summary summary = cache != null || namespace.getInt("threads") > 1 || inputs.size() > 1
+                    ? summarizeProfile(namespace, inputs, cache, limits, statistics, out)
+                    : summarizeStreaming(namespace, inputs.get(0), limits, statistics);
+                printSummary(namespace, inputs, summary, out);
             }
+            out.flush();
         } catch (IOException ex) {
-            System.err.printf("Failed to parse file %s with charset %s%n%n", file, selectedCharset);
+            out.flush();
+            System.err.printf("Failed to parse file %s with charset %s%n%n", inputs == null ? files : inputs, namespace.<Charset>get("charset"));
             ex.printStackTrace(System.err);
             System.exit(1);
         }
     }
 
-    private static void printNode(StackTraceElementNode sten, String indent) {
-        System.out.printf("%s+ [% 5d/% 5d] %s%n", indent, sten.getCount(), sten.getTotal(), sten.getLocation());
-        String newIndent = indent + "|  ";
-        String lastIndent = indent + "   ";
-        StackTraceElementNode parent = sten.getParent();
-        for(int i = 0; i < sten.getChildCount(); i++) {
-            if(parent.getIndex(sten) == (parent.getChildCount() - 1)) {
-                printNode(sten.getChildAt(i), lastIndent);
-            } else {
-                printNode(sten.getChildAt(i), newIndent);
+    private static List<Path> resolveInputs(ArgumentParser parser, List<File> files) throws IOException {
+        List<Path> inputs = MergedProfile.resolveInputs(files);
+        if (inputs.isEmpty()) {
+            parser.handleError(new ArgumentParserException("no profile files found for " + files, parser));
+            System.exit(1);
+        }
+        return inputs;
+    }
+
+    private static CallTreePrinter createPrinter(Namespace namespace, PrintWriter out) {
+        return new CallTreePrinter(out, namespace.getInt("maxDepth"), namespace.getDouble("minPercent"));
+    }
+
+    private static void printFolded(Namespace namespace, List<Path> inputs, ProfileCache cache, LoadStatistics statistics, PrintWriter out) throws IOException {
+        Charset charset = namespace.<Charset>get("charset");
+        FoldedStacks foldedStacks = new FoldedStacks();
+        if (cache == null && inputs.size() == 1) {
+            PapertrailParser.parse(inputs.get(0), charset, foldedStacks, statistics);
+        } else {
+            foldedStacks.add(MergedProfile.open(inputs, charset, namespace.getInt("threads"), cache, ProgressMonitor.NONE, statistics));
+        }
+        foldedStacks.write(out);
+    }
+
+    private static void printDiff(Namespace namespace, List<Path> baselineInputs, List<Path> inputs, ProfileCache cache, LoadStatistics statistics, PrintWriter out) throws IOException {
+        Charset charset = namespace.<Charset>get("charset");
+        int threads = namespace.getInt("threads");
+        File pprof = namespace.get("pprof");
+        // The statistics describe the candidate only
+        Profile baseline = MergedProfile.open(baselineInputs, charset, threads, cache);
+        Profile candidate = MergedProfile.open(inputs, charset, threads, cache, ProgressMonitor.NONE, statistics);
+        if (pprof != null) {
+            writePprof(pprof, candidate);
+        }
+        DiffNode diff = ProfileDiff.diff(baseline, candidate, threads);
+        out.printf("Baseline samples: %d, candidate samples: %d%n%n", diff.getBaselineCount(), diff.getCandidateCount());
+        createPrinter(namespace, out).printDiff(diff);
+        if (namespace.getBoolean("hotMethods")) {
+            printHotMethods(out, HotMethodAggregator.aggregate(candidate, threads).getHotMethods());
+        }
+    }
+
+    /**
+     * Load the profile with its stack traces, merging several files or
+     * reading it through the cache.
+     */
+    private static Summary summarizeProfile(Namespace namespace, List<Path> inputs, ProfileCache cache, CallTreeLimits limits, LoadStatistics statistics, PrintWriter out) throws IOException {
+        int threads = namespace.getInt("threads");
+        boolean callTree = namespace.getBoolean("textOutput") || namespace.get("flameGraph") != null;
+        File pprof = namespace.get("pprof");
+        Profile profile = MergedProfile.open(inputs, namespace.<Charset>get("charset"), threads, cache, ProgressMonitor.NONE, statistics);
+        statistics.setSymbols(profile.getSymbolTable().size());
+        if (profile instanceof MergedProfile) {
+            printSources(out, ((MergedProfile) profile).getSources());
+        }
+        TreeModel model = null;
+        if (callTree && namespace.getBoolean("compact")) {
+            CompactCallTree tree = statistics.time(LoadStatistics.Phase.CALL_TREE, () -> CompactCallTree.build(profile));
+            statistics.setNodes(tree.size());
+            model = new CompactCallTreeModel(tree);
+        } else if (callTree) {
+            StackTraceElementNode root = profile instanceof SummarizedProfile && limits.isUnlimited()
+                ? ((SummarizedProfile) profile).getCallTree()
+                : statistics.time(LoadStatistics.Phase.CALL_TREE, () -> StackTraceSummarizer.summarize(profile, threads, limits));
+            statistics.setNodes(LoadStatistics.countNodes(root));
+            model = new DefaultTreeModel(root);
+        }
+        if (pprof != null) {
+            writePprof(pprof, profile);
+        }
+        List<HotMethodElement> hotMethodList = null;
+        if (namespace.getBoolean("hotMethods") && profile instanceof SummarizedProfile) {
+            hotMethodList = ((SummarizedProfile) profile).getHotMethods();
+        } else if (namespace.getBoolean("hotMethods")) {
+            hotMethodList = statistics.time(LoadStatistics.Phase.HOT_METHODS,
+                () -> HotMethodAggregator.aggregate(profile, threads).getHotMethods());
+        }
+        return new Summary(model, hotMethodList);
+    }
+
+    /**
+     * Build the call tree, the hot methods and the pprof output while the
+     * single file is decoded, the stack traces are not retained.
+     */
+    private static Summary summarizeStreaming(Namespace namespace, Path input, CallTreeLimits limits, LoadStatistics statistics) throws IOException {
+        boolean compact = namespace.getBoolean("compact");
+        boolean callTree = namespace.getBoolean("textOutput") || namespace.get("flameGraph") != null;
+        File pprof = namespace.get("pprof");
+        CompactCallTree.Collector compactCollector = new CompactCallTree.Collector();
+        StackTraceSummarizer.Collector collector = new StackTraceSummarizer.Collector(limits);
+        HotMethodAggregator hotMethodAggregator = new HotMethodAggregator();
+        List<ProfileRecordVisitor> visitors = new ArrayList<>();
+        if (callTree) {
+            visitors.add(compact ? compactCollector : collector);
+        }
+        if (namespace.getBoolean("hotMethods")) {
+            visitors.add(hotMethodAggregator);
+        }
+        // The pprof output is written to a temporary file and only
+        // renamed to its target once the parse succeeded
+        Path pprofTemp = pprof == null ? null : createPprofTemp(pprof);
+        try {
+            try (PprofWriter pprofWriter = pprofTemp == null ? null : new PprofWriter(Files.newOutputStream(pprofTemp))) {
+                if (pprofWriter != null) {
+                    visitors.add(pprofWriter);
+                }
+                PapertrailParser.parse(input, namespace.<Charset>get("charset"), ProfileRecordVisitor.combine(visitors.toArray(new ProfileRecordVisitor[0])), statistics);
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+            if (pprofTemp != null) {
+                Files.move(pprofTemp, pprof.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } finally {
+            if (pprofTemp != null) {
+                Files.deleteIfExists(pprofTemp);
+            }
+        }
+        TreeModel model = null;
+        if (callTree && compact) {
+            statistics.setNodes(compactCollector.getTree().size());
+            model = new CompactCallTreeModel(compactCollector.getTree());
+        } else if (callTree) {
+            statistics.setNodes(LoadStatistics.countNodes(collector.getRoot()));
+            model = new DefaultTreeModel(collector.getRoot());
+        }
+        return new Summary(model, hotMethodAggregator.getHotMethods());
+    }
+
+    private static void printSummary(Namespace namespace, List<Path> inputs, Summary summary, PrintWriter out) throws IOException {
+        File flameGraph = namespace.get("flameGraph");
+        if (summary.model != null && namespace.getBoolean("textOutput")) {
+            createPrinter(namespace, out).print(summary.model);
+        }
+        if (summary.model != null && flameGraph != null) {
+            String title = inputs.size() == 1 ? inputs.get(0).getFileName().toString() : inputs.size() + " files";
+            try (Writer writer = Files.newBufferedWriter(flameGraph.toPath(), StandardCharsets.UTF_8)) {
+                new FlameGraphWriter().write(summary.model, title, writer);
             }
         }
+        if (namespace.getBoolean("hotMethods")) {
+            printHotMethods(out, summary.hotMethods);
+        }
+    }
+
+    /**
+     * Print the sources, call tree and hot methods of the aggregate of the
+     * watched directory each time it changes. Runs until the process is
+     * terminated.
+     */
+    @SuppressWarnings("UseOfSystemOutOrSystemErr")
+    private static void watchCLI(ArgumentParser parser, Namespace namespace, File watchDirectory, ProfileCache cache, CallTreeLimits limits) {
+        int threads = namespace.getInt("threads");
+        boolean textOutput = namespace.getBoolean("textOutput");
+        boolean hotMethods = namespace.getBoolean("hotMethods");
+        boolean stats = namespace.getBoolean("stats");
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, Charset.defaultCharset()), 1 << 16));
+        CallTreePrinter printer = createPrinter(namespace, out);
+        if (!watchDirectory.isDirectory()) {
+            parser.handleError(new ArgumentParserException(watchDirectory + " is not a directory", parser));
+            System.exit(1);
+        }
+        ProfileDirectoryWatcher.Listener listener = (profile, sources, statistics) -> {
+            try {
+                out.printf("%tT %d files, %d samples%n%n", new Date(), sources.size(), profile.getCallTree().getCount());
+                printSources(out, sources);
+                if (textOutput) {
+                    printer.print(new DefaultTreeModel(limits.isUnlimited()
+                        ? profile.getCallTree()
+                        : StackTraceSummarizer.summarize(profile, threads, limits)));
+                    out.println();
+                }
+                if (hotMethods) {
+                    printHotMethods(out, profile.getHotMethods());
+                    out.println();
+                }
+                statistics.setSymbols(profile.getSymbolTable().size());
+                statistics.setNodes(LoadStatistics.countNodes(profile.getCallTree()));
+                LoadStatistics.publish(statistics);
+                if (stats) {
+                    out.flush();
+                    printStatistics(statistics);
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace(System.err);
+            }
+            out.flush();
+        };
+        try (ProfileDirectoryWatcher watcher = new ProfileDirectoryWatcher(watchDirectory.toPath(), "*.pprof",
+            namespace.<Charset>get("charset"), threads, cache, ProfileDirectoryWatcher.DEFAULT_DEBOUNCE_MILLIS, listener)) {
+            watcher.run();
+        } catch (IOException ex) {
+            System.err.printf("Failed to watch %s%n%n", watchDirectory);
+            ex.printStackTrace(System.err);
+            System.exit(1);
+        }
+    }
+
+    @SuppressWarnings("UseOfSystemOutOrSystemErr")
+    private static void printStatistics(LoadStatistics statistics) {
+        System.err.println();
+        System.err.print(statistics.format());
+        System.err.flush();
+    }
+
+    private static void writePprof(File target, Profile profile) throws IOException {
+        Path temp = createPprofTemp(target);
+        try {
+            try (PprofWriter pprofWriter = new PprofWriter(Files.newOutputStream(temp))) {
+                pprofWriter.add(profile);
+            }
+            Files.move(temp, target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * The temporary file is placed next to {@code target}, so that it can be
+     * moved atomically in place and gets the permissions of a regular output
+     * file.
+     */
+    private static Path createPprofTemp(File target) {
+        return target.toPath().resolveSibling(target.getName() + ".tmp");
+    }
+
+    private static void printSources(PrintWriter out, List<MergedProfile.Source> sources) {
+        long total = 0;
+        for(MergedProfile.Source source: sources) {
+            total += source.getSampleCount();
+        }
+        out.printf("%10s %10s %7s  %s%n", "Samples", "Traces", "Share", "File");
+        for(MergedProfile.Source source: sources) {
+            out.printf("%10d %10d %6.2f%%  %s%n",
+                source.getSampleCount(),
+                source.getTraceCount(),
+                total == 0 ? 0d : source.getSampleCount() * 100d / total,
+                source.getPath());
+        }
+        out.println();
+    }
+
+    private static void printHotMethods(PrintWriter out, List<HotMethodElement> hotMethods) {
+        List<HotMethodElement> sorted = new ArrayList<>(hotMethods);
+        sorted.sort(Comparator.comparingLong(HotMethodElement::getSelfTime)
+            .thenComparingLong(HotMethodElement::getTotalTime)
+            .reversed());
+        out.printf("%10s %10s  %s%n", "Self", "Total", "Location");
+        for(HotMethodElement hme: sorted) {
+            out.printf("%10d %10d  %s%n", hme.getSelfTime(), hme.getTotalTime(), hme.getLocation());
+        }
+    }
+
+    /**
+     * Call tree and hot methods of the profile, {@code null} if they were
+     * not requested.
+     */
+    private static final class Summary {
+
+        private final TreeModel model;
+        private final List<HotMethodElement> hotMethods;
+
+        Summary(TreeModel model, List<HotMethodElement> hotMethods) {
+            this.model = model;
+            this.hotMethods = hotMethods;
+        }
     }
 }
@@ -16,70 +16,136 @@
 
 package eu.doppel_helix.papertrail.papertrailprofileranalysis;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-public class PapertrailParser {
+public class PapertrailParser implements Profile {
 
     private static final Pattern SYMBOL_LINE = Pattern.compile("0x([0-9a-fA-F]{16})\\s+(.*)");
     private static final long[] START_MARKER = new long[] {0, 3, 0, 1, 0};
+    private static final int RECORDS_PER_CHUNK = 16 * 1024;
+    // Number of records between progress reports and cancellation checks
+    private static final int RECORDS_PER_CHECK = 1024;
     private final Charset charsetOfData;
     private final Path input;
     private String binary;
-    private final Map<Long,String> symbolMap = new HashMap<>();
+    private final SymbolTable symbolTable = new SymbolTable();
     private final List<StackTrace> stackTraces = new ArrayList<>();
     private final byte[] newLine;
+    private final ProgressMonitor monitor;
+    private final LoadStatistics statistics;
+    private byte[] lineBuffer = new byte[256];
 
     public PapertrailParser(Path input, Charset charsetOfData) throws IOException {
+        this(input, charsetOfData, 1);
+    }
+
+    /**
+     * Parse the profile, decoding the profile section with up to
+     * {@code threads} worker threads. The resulting stack traces are in file
+     * order regardless of the number of threads.
+     */
+    public PapertrailParser(Path input, Charset charsetOfData, int threads) throws IOException {
+        this(input, charsetOfData, null, threads, ProgressMonitor.NONE, new LoadStatistics());
+    }
+
+    /**
+     * Same as {@link #PapertrailParser(java.nio.file.Path, java.nio.charset.Charset, int)},
+     * the consumed bytes are reported to {@code monitor}. If the monitor is
+     * cancelled, parsing stops with a
+     * {@link java.util.concurrent.CancellationException}.
+     */
+    public PapertrailParser(Path input, Charset charsetOfData, int threads, ProgressMonitor monitor) throws IOException {
+        this(input, charsetOfData, null, threads, monitor, new LoadStatistics());
+    }
+
+    /**
+     * Same as {@link #PapertrailParser(java.nio.file.Path, java.nio.charset.Charset, int, ProgressMonitor)},
+     * the timings and sizes are added to {@code statistics}.
+     */
+    public PapertrailParser(Path input, Charset charsetOfData, int threads, ProgressMonitor monitor, LoadStatistics statistics) throws IOException {
+        this(input, charsetOfData, null, threads, monitor, statistics);
+    }
+
+    private PapertrailParser(Path input, Charset charsetOfData, ProfileRecordVisitor visitor, int threads, ProgressMonitor monitor, LoadStatistics statistics) throws IOException {
+        this.monitor = monitor;
+        this.statistics = statistics;
         ByteBuffer newLineBuffer = charsetOfData.encode("\n");
-        newLine = new byte[newLineBuffer.capacity()];
+        newLine = new byte[newLineBuffer.remaining()];
         newLineBuffer.get(newLine);
 	this.charsetOfData = charsetOfData;
 	this.input = input;
-	parse();
+	if(visitor == null) {
+	    parse((count, frames, depth) -> stackTraces.add(new StackTrace(count, symbolTable, frames, depth)), threads);
+	} else {
+	    parse(visitor, 1);
+	}
+    }
+
+    /**
+     * Decode the profile and report the records to {@code visitor} as they
+     * are read. In contrast to the constructor, the stack traces are not
+     * retained.
+     */
+    public static void parse(Path input, Charset charsetOfData, ProfileRecordVisitor visitor) throws IOException {
+        parse(input, charsetOfData, visitor, new LoadStatistics());
+    }
+
+    /**
+     * Same as {@link #parse(java.nio.file.Path, java.nio.charset.Charset, ProfileRecordVisitor)},
+     * the timings and sizes are added to {@code statistics}.
+     */
+    public static void parse(Path input, Charset charsetOfData, ProfileRecordVisitor visitor, LoadStatistics statistics) throws IOException {
+        new PapertrailParser(input, charsetOfData, visitor, 1, ProgressMonitor.NONE, statistics);
     }
 
+    @Override
     public String getBinary() {
 	return binary;
     }
 
     public Map<Long, String> getSymbolMap() {
-	return Collections.unmodifiableMap(symbolMap);
+	return symbolTable.getAddressMap();
     }
 
+    @Override
+    public SymbolTable getSymbolTable() {
+	return symbolTable;
+    }
+
+    @Override
     public List<StackTrace> getStackTraces() {
 	return Collections.unmodifiableList(stackTraces);
     }
 
-    private void parse() throws IOException {
-        try (InputStream is0 = Files.newInputStream(input, StandardOpenOption.READ)) {
+    private void parse(ProfileRecordVisitor visitor, int threads) throws IOException {
+        long start = System.nanoTime();
+        try (MappedProfileReader reader = new MappedProfileReader(input)) {
 	    String line;
-	    line = readLine(is0);
+	    line = readLine(reader);
 	    if(! "--- symbol".equals(line)) {
 		throw new IOException(String.format("Expected '--- symbol', got \n'%s'", line.substring(0, Math.min(line.length(), 128))));
 	    }
-	    line = readLine(is0);
+	    line = readLine(reader);
 	    if(! line.startsWith("binary=")) {
 		throw new IOException(String.format("Expected line to start with 'binary=', got '%s'", line));
 	    } else {
 		binary = line.substring(7);
 	    }
 	    while(true) {
-		line = readLine(is0);
+		line = readLine(reader);
 		if("---".equals(line)) {
 		    break;
 		} else {
@@ -87,96 +153,219 @@ public class PapertrailParser {
 		    if(! matcher.matches()) {
 			throw new IOException("Found empty line in symbol section");
 		    }
-		    symbolMap.put(Long.valueOf(matcher.group(1), 16), matcher.group(2));
+		    symbolTable.addAddress(Long.parseUnsignedLong(matcher.group(1), 16), matcher.group(2));
 		}
 	    }
-	    line = readLine(is0);
+	    line = readLine(reader);
 	    if(! "--- profile".equals(line)) {
 		throw new IOException(String.format("Expected '--- profile', got '%s'", line));
 	    }
+	    visitor.visitSymbols(binary, symbolTable);
+	    long symbolSectionEnd = System.nanoTime();
+	    statistics.addPhase(LoadStatistics.Phase.SYMBOL_SECTION, symbolSectionEnd - start);
+	    statistics.setSymbols(symbolTable.size());
+	    monitor.consumed(reader.position());
+	    monitor.checkCancelled();
 
-	    long[] startSignature = readLongArray(is0, 5);
+	    MappedLongArray profile = reader.mapLongs();
+	    long[] startSignature = readLongArray(profile, 0, START_MARKER.length);
 	    if(!Arrays.equals(START_MARKER, startSignature)) {
 		throw new IOException(String.format("Expected start marker '%s', got '%s'", Arrays.toString(START_MARKER), Arrays.toString(startSignature)));
 	    }
 
+	    if(threads > 1) {
+		decodeParallel(profile, threads);
+	    } else {
+		decodeRecords(profile, START_MARKER.length, Long.MAX_VALUE, visitor);
+	    }
+	    visitor.visitEnd();
+	    statistics.addPhase(LoadStatistics.Phase.PROFILE_SECTION, System.nanoTime() - symbolSectionEnd);
+	    statistics.addBytesRead(reader.size());
+	    // Account for the start marker and the terminating record
+	    monitor.consumed((START_MARKER.length + 3) * Long.BYTES);
+	}
+    }
 
-
-	    ArrayList<StackTrace> data = new ArrayList<>();
-	    do {
-		int count = (int) readLong(is0);
-		int depth = (int) readLong(is0);
-		long eofMark = (int) readLong(is0);
-		if(count == 0 && depth == 1 && eofMark == 0) {
-		    this.stackTraces.addAll(data);
-		    return;
-		} else {
-		    long[] refs = readLongArray(is0, depth - 1);
-		    List<String> trace = new ArrayList<>(depth);
-                    trace.add(symbolMap.get(eofMark));
-		    for(long ref: refs) {
-                        String steLine = symbolMap.get(ref);
-                        if(trace.isEmpty() || (! trace.get(trace.size() - 1).equals(steLine))) {
-                            trace.add(steLine);
-                        }
+    /**
+     * Decode the records starting at {@code offset} until either
+     * {@code end} or the terminating record is reached.
+     */
+    private void decodeRecords(MappedLongArray profile, long offset, long end, ProfileRecordVisitor visitor) throws IOException {
+	int[] trace = new int[64];
+	long reportedOffset = offset;
+	long records = 0;
+	long samples = 0;
+	long frames = 0;
+	while(offset < end) {
+	    int count = (int) readLong(profile, offset);
+	    int depth = (int) readLong(profile, offset + 1);
+	    long eofMark = readLong(profile, offset + 2);
+	    if(count == 0 && depth == 1 && eofMark == 0) {
+		break;
+	    } else if (depth < 1) {
+		throw new IOException(String.format("Invalid depth %d for record at offset %d", depth, offset));
+	    } else {
+		if(trace.length < depth) {
+		    trace = new int[Math.max(depth, trace.length * 2)];
+		}
+		int traceLength = 0;
+		trace[traceLength++] = symbolTable.resolve(eofMark);
+		for(int i = 1; i < depth; i++) {
+		    int symbolId = symbolTable.resolve(readLong(profile, offset + 2 + i));
+		    if(trace[traceLength - 1] != symbolId) {
+			trace[traceLength++] = symbolId;
 		    }
-		    StackTrace ste = new StackTrace(count, trace);
-		    data.add(ste);
 		}
-	    } while (true);
+		visitor.visitRecord(count, trace, traceLength);
+		records++;
+		samples += count;
+		frames += traceLength;
+		offset += 2 + depth;
+		if(records % RECORDS_PER_CHECK == 0) {
+		    monitor.consumed((offset - reportedOffset) * Long.BYTES);
+		    reportedOffset = offset;
+		    monitor.checkCancelled();
+		}
+	    }
 	}
+	monitor.consumed((offset - reportedOffset) * Long.BYTES);
+	statistics.addRecords(records, samples, frames);
     }
 
-    private long readLong(final InputStream isr) throws IOException {
-	long result = (isr.read() & 0xFFL);
-	result |= (isr.read() & 0xFFL) << 8;
-	result |= (isr.read() & 0xFFL) << 16;
-	result |= (isr.read() & 0xFFL) << 24;
-	result |= (isr.read() & 0xFFL) << 32;
-	result |= (isr.read() & 0xFFL) << 40;
-	result |= (isr.read() & 0xFFL) << 48;
-	result |= (isr.read() & 0xFFL) << 56;
-	return result;
+    private void decodeParallel(MappedLongArray profile, int threads) throws IOException {
+	long[] boundaries = scanChunkBoundaries(profile);
+	int chunks = boundaries.length - 1;
+	// Each task sets its own slot, the list itself is not modified
+	List<List<StackTrace>> results = new ArrayList<>(Collections.nCopies(chunks, null));
+	if(chunks > 0) {
+	    ForkJoinPool pool = new ForkJoinPool(threads);
+	    try {
+		pool.invoke(new DecodeTask(profile, boundaries, 0, chunks, results));
+	    } catch (UncheckedIOException ex) {
+		throw ex.getCause();
+	    } finally {
+		pool.shutdown();
+	    }
+	}
+	int traceCount = 0;
+	for(List<StackTrace> result: results) {
+	    traceCount += result.size();
+	}
+	((ArrayList<StackTrace>) stackTraces).ensureCapacity(traceCount);
+	for(List<StackTrace> result: results) {
+	    stackTraces.addAll(result);
+	}
+    }
+
+    /**
+     * Walk the record headers of the profile section and split the records
+     * into chunks of {@link #RECORDS_PER_CHUNK} records.
+     *
+     * @return offsets of the chunk starts, the last entry is the offset of
+     *         the terminating record
+     */
+    private long[] scanChunkBoundaries(MappedLongArray profile) throws IOException {
+	long[] boundaries = new long[16];
+	int boundaryCount = 0;
+	long offset = START_MARKER.length;
+	for(long record = 0; ; record++) {
+	    long count = readLong(profile, offset);
+	    long depth = readLong(profile, offset + 1);
+	    long eofMark = readLong(profile, offset + 2);
+	    boolean terminator = count == 0 && depth == 1 && eofMark == 0;
+	    if(terminator || record % RECORDS_PER_CHUNK == 0) {
+		monitor.checkCancelled();
+		if(boundaryCount == boundaries.length) {
+		    boundaries = Arrays.copyOf(boundaries, boundaryCount * 2);
+		}
+		boundaries[boundaryCount++] = offset;
+	    }
+	    if(terminator) {
+		return Arrays.copyOf(boundaries, boundaryCount);
+	    } else if (depth < 1 || depth > Integer.MAX_VALUE) {
+		throw new IOException(String.format("Invalid depth %d for record at offset %d", depth, offset));
+	    }
+	    offset += 2 + depth;
+	}
+    }
+
+    private final class DecodeTask extends RecursiveAction {
+
+	private final MappedLongArray profile;
+	private final long[] boundaries;
+	private final int from;
+	private final int to;
+	private final List<List<StackTrace>> results;
+
+	DecodeTask(MappedLongArray profile, long[] boundaries, int from, int to, List<List<StackTrace>> results) {
+	    this.profile = profile;
+	    this.boundaries = boundaries;
+	    this.from = from;
+	    this.to = to;
+	    this.results = results;
+	}
+
+	@Override
+	protected void compute() {
+	    if(to - from > 1) {
+		int middle = (from + to) >>> 1;
+		invokeAll(new DecodeTask(profile, boundaries, from, middle, results),
+		    new DecodeTask(profile, boundaries, middle, to, results));
+	    } else {
+		List<StackTrace> result = new ArrayList<>();
+		try {
+		    decodeRecords(profile, boundaries[from], boundaries[from + 1],
+			(count, frames, depth) -> result.add(new StackTrace(count, symbolTable, frames, depth)));
+		} catch (IOException ex) {
+		    throw new UncheckedIOException(ex);
+		}
+		results.set(from, result);
+	    }
+	}
     }
 
-    private long[] readLongArray(final InputStream isr, int count) throws IOException {
-	long[] result = new long[(int) count];
+    private long readLong(final MappedLongArray profile, long index) throws IOException {
+	if(index >= profile.size()) {
+	    throw new IOException("Reached EOF while reading profile section");
+	}
+	return profile.get(index);
+    }
+
+    private long[] readLongArray(final MappedLongArray profile, long index, int count) throws IOException {
+	long[] result = new long[count];
 	for(int i = 0; i < count; i++) {
-	    result[i] = readLong(isr);
+	    result[i] = readLong(profile, index + i);
 	}
 	return result;
     }
 
-    private String readLine(final InputStream is) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte[] newLineSearch = new byte[newLine.length];
-        readFully(newLineSearch, is);
-
+    private String readLine(final MappedProfileReader reader) throws IOException {
+        int length = 0;
         while(true) {
-            if(Arrays.equals(newLineSearch, newLine)) {
-                return baos.toString(charsetOfData.name());
+            if(length >= newLine.length && endsWithNewLine(length)) {
+                return new String(lineBuffer, 0, length - newLine.length, charsetOfData);
             }
 
-            int readByte = is.read();
+            int readByte = reader.read();
 
             if (readByte < 0) {
                 throw new IOException("Reached EOF while looking for EOL");
             }
 
-            baos.write(newLineSearch[0]);
-            System.arraycopy(newLineSearch, 1, newLineSearch, 0, newLineSearch.length - 1);
-            newLineSearch[newLineSearch.length - 1] = (byte) readByte;
+            if(length == lineBuffer.length) {
+                lineBuffer = Arrays.copyOf(lineBuffer, lineBuffer.length * 2);
+            }
+            lineBuffer[length++] = (byte) readByte;
         }
     }
 
-    private void readFully(byte[] target, InputStream source) throws IOException {
-        int read = 0;
-        do {
-            int currentRead = source.read(target, read, target.length - read);
-            read += currentRead;
-            if(currentRead < 0) {
-                throw new IOException("No bytes left in stream");
+    private boolean endsWithNewLine(int length) {
+        int offset = length - newLine.length;
+        for(int i = 0; i < newLine.length; i++) {
+            if(lineBuffer[offset + i] != newLine[i]) {
+                return false;
             }
-        } while( read < target.length );
+        }
+        return true;
     }
 }
@@ -26,17 +26,28 @@ import java.awt.event.MouseEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.DefaultListCellRenderer;
+import javax.swing.DefaultRowSorter;
 import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
 import javax.swing.JLabel;
@@ -44,11 +55,16 @@ import javax.swing.JList;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JTree;
+import javax.swing.RowFilter;
 import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.filechooser.FileNameExtensionFilter;
+import javax.swing.table.TableModel;
 import javax.swing.tree.DefaultTreeModel;
+import javax.swing.tree.TreeModel;
 import javax.swing.tree.TreePath;
 
 /**
@@ -58,11 +74,40 @@ import javax.swing.tree.TreePath;
 public class PapertrailUI extends javax.swing.JFrame {
 
     private static final Logger LOG = Logger.getLogger(PapertrailUI.class.getName());
-    private PapertrailParser parser;
+    // Limit for the number of levels expanded at once, when following a
+    // chain of single children
+    private static final int MAX_AUTO_EXPAND_DEPTH = 64;
+    private static final String BUTTERFLY_HINT = "Select a method in the hot methods table";
+    private Profile profile;
+    private Profile baselineProfile;
     private DefaultComboBoxModel<StackTrace> stacktraceSelectionModel = new DefaultComboBoxModel<>();
     private StackTraceTableModel stacktraceModel = new StackTraceTableModel();
     private HotMethodTableModel hotMethodTableModel = new HotMethodTableModel();
-    private DefaultTreeModel calltreeModel = new DefaultTreeModel(new StackTraceElementNode());
+    private HotMethodTableModel callerTableModel = new HotMethodTableModel();
+    private HotMethodTableModel calleeTableModel = new HotMethodTableModel();
+    private SourceTableModel sourceTableModel = new SourceTableModel();
+    private int parserThreads = 1;
+    private boolean compactCallTree = false;
+    private ProfileCache profileCache;
+    private CallTreeLimits callTreeLimits = CallTreeLimits.NONE;
+    private ProfileDirectoryWatcher directoryWatcher;
+    // Incremented when watching stops, so snapshots of a closed watcher, that
+    // are still queued on the EDT, are dropped
+    private int watchGeneration;
+    private final List<ProfileLoader> activeLoaders = new ArrayList<>();
+    // The latest loads of the profile and the baseline, an earlier load is
+    // superseded when a new one is started
+    private ProfileLoader profileLoader;
+    private ProfileLoader baselineLoader;
+    private final StackTraceElementTreeElementRenderer calltreeRenderer = new StackTraceElementTreeElementRenderer();
+    private SymbolIndex symbolIndex;
+    private int[] searchMatches = new int[0];
+    private int searchPosition = -1;
+    private TraceIndex traceIndex;
+    private SwingWorker<Butterfly, Object> butterflyWorker;
+    private SwingWorker<Object, Object> profileWorker;
+    // Statistics of the load, that produced the current profile
+    private LoadStatistics profileStatistics;
 
     /**
      * Creates new form PaperTrailUI
@@ -116,14 +161,225 @@ public class PapertrailUI extends javax.swing.JFrame {
             }
         });
         calltreeTree.setToggleClickCount(Integer.MAX_VALUE);
-        calltreeTree.setModel(calltreeModel);
+        calltreeTree.setModel(new DefaultTreeModel(new StackTraceElementNode()));
         calltreeTree.setRootVisible(false);
         calltreeTree.setShowsRootHandles(true);
-        calltreeTree.setCellRenderer(new StackTraceElementTreeElementRenderer());
+        calltreeTree.setCellRenderer(calltreeRenderer);
         hotMethodTable.setModel(hotMethodTableModel);
+        hotMethodTable.getSelectionModel().addListSelectionListener(e -> {
+            if (!e.getValueIsAdjusting()) {
+                updateButterfly();
+            }
+        });
+        callerTable.setModel(callerTableModel);
+        calleeTable.setModel(calleeTableModel);
+        sourceTable.setModel(sourceTableModel);
+        diffTree.setModel(new DefaultTreeModel(new DiffNode("<>", 0, 0, 0, 0)));
+        diffTree.setRootVisible(false);
+        diffTree.setShowsRootHandles(true);
+        diffTree.setCellRenderer(new DiffNodeRenderer());
+        loadingPanel.setVisible(false);
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                updateSearch();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                updateSearch();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                updateSearch();
+            }
+        });
+    }
+
+    public int getParserThreads() {
+        return parserThreads;
+    }
+
+    public void setParserThreads(int parserThreads) {
+        this.parserThreads = parserThreads;
+    }
+
+    public boolean isCompactCallTree() {
+        return compactCallTree;
+    }
+
+    /**
+     * Store the call tree of subsequently opened profiles in a
+     * {@link CompactCallTree} instead of {@link StackTraceElementNode}s.
+     */
+    public void setCompactCallTree(boolean compactCallTree) {
+        this.compactCallTree = compactCallTree;
+    }
+
+    public ProfileCache getProfileCache() {
+        return profileCache;
+    }
+
+    /**
+     * Read subsequently opened profiles through {@code profileCache}, the
+     * cache is disabled if it is {@code null}.
+     */
+    public void setProfileCache(ProfileCache profileCache) {
+        this.profileCache = profileCache;
+    }
+
+    public CallTreeLimits getCallTreeLimits() {
+        return callTreeLimits;
+    }
+
+    /**
+     * Limits applied to the call tree of subsequently opened profiles, not
+     * supported by the compact call tree.
+     */
+    public void setCallTreeLimits(CallTreeLimits callTreeLimits) {
+        this.callTreeLimits = callTreeLimits;
+    }
+
+    /**
+     * Highlight the call tree nodes and filter the hot methods matching the
+     * search text. Until the symbol index of the current profile is built,
+     * only the highlight and the filter are updated.
+     */
+    @SuppressWarnings("unchecked")
+    private void updateSearch() {
+        String query = searchField.getText().trim();
+        calltreeRenderer.setHighlight(query);
+        calltreeTree.repaint();
+        searchMatches = new int[0];
+        searchPosition = -1;
+        DefaultRowSorter<TableModel, Integer> sorter = (DefaultRowSorter<TableModel, Integer>) hotMethodTable.getRowSorter();
+        if (query.isEmpty()) {
+            sorter.setRowFilter(null);
+            searchStatus.setText("");
+            return;
+        }
+        if (symbolIndex == null) {
+            String lowerCaseQuery = query.toLowerCase(Locale.ROOT);
+            sorter.setRowFilter(new RowFilter<TableModel, Integer>() {
+                @Override
+                public boolean include(RowFilter.Entry<? extends TableModel, ? extends Integer> entry) {
+                    return entry.getStringValue(0).toLowerCase(Locale.ROOT).contains(lowerCaseQuery);
+                }
+            });
+            searchStatus.setText("Indexing...");
+            return;
+        }
+        int[] symbols = symbolIndex.findSymbols(query);
+        Set<String> names = new HashSet<>();
+        for (int symbolId : symbols) {
+            names.add(symbolIndex.getSymbolTable().getName(symbolId));
+        }
+        sorter.setRowFilter(new RowFilter<TableModel, Integer>() {
+            @Override
+            public boolean include(RowFilter.Entry<? extends TableModel, ? extends Integer> entry) {
+                return names.contains(entry.getStringValue(0));
+            }
+        });
+        searchMatches = symbolIndex.findNodes(symbols);
+        searchStatus.setText(searchMatches.length + " matches");
+    }
+
+    /**
+     * Select the next ({@code step} = 1) or previous ({@code step} = -1)
+     * call tree node matching the search text.
+     */
+    private void showSearchMatch(int step) {
+        if (searchMatches.length == 0) {
+            return;
+        }
+        searchPosition = Math.floorMod(searchPosition + step, searchMatches.length);
+        TreeModel model = calltreeTree.getModel();
+        TreePath path = null;
+        if (model instanceof LazyCallTreeModel) {
+            path = ((LazyCallTreeModel) model).getPath(symbolIndex.getNode(searchMatches[searchPosition]));
+        } else if (model instanceof CompactCallTreeModel) {
+            path = ((CompactCallTreeModel) model).getPath(symbolIndex.getCompactNode(searchMatches[searchPosition]));
+        }
+        if (path != null) {
+            analysisPanels.setSelectedComponent(calltreePanel);
+            calltreeTree.setSelectionPath(path);
+            calltreeTree.scrollPathToVisible(path);
+        }
+        searchStatus.setText((searchPosition + 1) + " / " + searchMatches.length);
+    }
+
+    /**
+     * Show the callers and callees of the method selected in the hot method
+     * table. The computation only scans the traces, that contain the method.
+     */
+    private void updateButterfly() {
+        // Results of a previous, slower selection must not overwrite this one
+        cancelButterfly();
+        int row = hotMethodTable.getSelectedRow();
+        if (row < 0) {
+            clearButterfly(BUTTERFLY_HINT);
+            return;
+        }
+        String location = (String) hotMethodTableModel.getValueAt(hotMethodTable.convertRowIndexToModel(row), 0);
+        if (traceIndex == null) {
+            clearButterfly(location + " - Indexing...");
+            return;
+        }
+        TraceIndex index = traceIndex;
+        int symbolId = index.getSymbolTable().getId(location);
+        if (symbolId < 0) {
+            clearButterfly(BUTTERFLY_HINT);
+            return;
+        }
+        butterflyMethod.setText(location + " - Computing...");
+        butterflyWorker = new SwingWorker<Butterfly, Object>() {
+            @Override
+            protected Butterfly doInBackground() throws Exception {
+                return Butterfly.compute(index, symbolId);
+            }
+
+            @Override
+            protected void done() {
+                if (butterflyWorker != this) {
+                    return;
+                }
+                butterflyWorker = null;
+                try {
+                    Butterfly butterfly = get();
+                    HotMethodElement method = butterfly.getMethod();
+                    butterflyMethod.setText(String.format("%s - Total: %d, Self: %d, Callers: %d, Callees: %d",
+                        method.getLocation(), method.getTotalTime(), method.getSelfTime(),
+                        butterfly.getCallers().size(), butterfly.getCallees().size()));
+                    callerTableModel.setElements(butterfly.getCallers());
+                    calleeTableModel.setElements(butterfly.getCallees());
+                } catch (InterruptedException | ExecutionException ex) {
+                    LOG.log(Level.WARNING, "Failed to compute callers and callees", ex);
+                }
+            }
+        };
+        butterflyWorker.execute();
+    }
+
+    private void clearButterfly(String text) {
+        butterflyMethod.setText(text);
+        callerTableModel.setElements(null);
+        calleeTableModel.setElements(null);
+    }
+
+    private void cancelButterfly() {
+        if (butterflyWorker != null) {
+            butterflyWorker.cancel(false);
+            butterflyWorker = null;
+        }
     }
 
     private void toggleExpandRecursive(JTree tree, TreePath tp) {
+        if (tp.getLastPathComponent() instanceof LazyCallTreeModel.MoreEntry
+            && tree.getModel() instanceof LazyCallTreeModel) {
+            ((LazyCallTreeModel) tree.getModel()).expandMore((LazyCallTreeModel.MoreEntry) tp.getLastPathComponent());
+            return;
+        }
         boolean collapse = tree.isExpanded(tp);
         if(collapse) {
             tree.collapsePath(tp);
@@ -133,12 +389,14 @@ public class PapertrailUI extends javax.swing.JFrame {
     }
 
     private void expandRecursive(JTree tree, TreePath tp) {
-        tree.expandPath(tp);
-        StackTraceElementNode sten = (StackTraceElementNode) tp.getLastPathComponent();
-        if(sten.getChildCount() == 1) {
-            for(StackTraceElementNode child: sten.getChildren()) {
-                expandRecursive(tree, tp.pathByAddingChild(child));
+        TreeModel model = tree.getModel();
+        for (int i = 0; i < MAX_AUTO_EXPAND_DEPTH; i++) {
+            tree.expandPath(tp);
+            Object node = tp.getLastPathComponent();
+            if (model.getChildCount(node) != 1) {
+                break;
             }
+            tp = tp.pathByAddingChild(model.getChild(node, 0));
         }
     }
 
@@ -151,6 +409,12 @@ public class PapertrailUI extends javax.swing.JFrame {
     // <editor-fold defaultstate="collapsed" desc="Generated Code">//GEN-BEGIN:initComponents
     private void initComponents() {
 
+        searchPanel = new javax.swing.JPanel();
+        searchLabel = new javax.swing.JLabel();
+        searchField = new javax.swing.JTextField();
+        previousMatch = new javax.swing.JButton();
+        nextMatch = new javax.swing.JButton();
+        searchStatus = new javax.swing.JLabel();
         analysisPanels = new javax.swing.JTabbedPane();
         stacktraceList = new javax.swing.JPanel();
         stacktraceTableWrapper = new javax.swing.JScrollPane();
@@ -162,15 +426,69 @@ public class PapertrailUI extends javax.swing.JFrame {
         hotMethodPanel = new javax.swing.JPanel();
         hotMethodWrapper = new javax.swing.JScrollPane();
         hotMethodTable = new javax.swing.JTable();
+        butterflyPanel = new javax.swing.JPanel();
+        butterflyMethod = new javax.swing.JLabel();
+        butterflySplit = new javax.swing.JSplitPane();
+        callerWrapper = new javax.swing.JScrollPane();
+        callerTable = new javax.swing.JTable();
+        calleeWrapper = new javax.swing.JScrollPane();
+        calleeTable = new javax.swing.JTable();
+        filesPanel = new javax.swing.JPanel();
+        sourceWrapper = new javax.swing.JScrollPane();
+        sourceTable = new javax.swing.JTable();
+        diffPanel = new javax.swing.JPanel();
+        diffWrapper = new javax.swing.JScrollPane();
+        diffTree = new javax.swing.JTree();
         jMenuBar1 = new javax.swing.JMenuBar();
         fileMenu = new javax.swing.JMenu();
         openfile = new javax.swing.JMenuItem();
+        openBaseline = new javax.swing.JMenuItem();
+        watchDirectory = new javax.swing.JMenuItem();
+        exportFlameGraph = new javax.swing.JMenuItem();
         exit = new javax.swing.JMenuItem();
+        statusPanel = new javax.swing.JPanel();
+        statusBar = new javax.swing.JLabel();
+        loadingPanel = new javax.swing.JPanel();
+        progressBar = new javax.swing.JProgressBar();
+        cancelLoading = new javax.swing.JButton();
 
         setDefaultCloseOperation(javax.swing.WindowConstants.DISPOSE_ON_CLOSE);
         setTitle("Papertrail Profile Analyser");
         setPreferredSize(new java.awt.Dimension(800, 600));
 
+        searchPanel.setLayout(new java.awt.FlowLayout(java.awt.FlowLayout.LEADING));
+
+        searchLabel.setLabelFor(searchField);
+        searchLabel.setText("Search:");
+        searchPanel.add(searchLabel);
+
+        searchField.setColumns(30);
+        searchField.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                searchFieldActionPerformed(evt);
+            }
+        });
+        searchPanel.add(searchField);
+
+        previousMatch.setText("Previous");
+        previousMatch.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                previousMatchActionPerformed(evt);
+            }
+        });
+        searchPanel.add(previousMatch);
+
+        nextMatch.setText("Next");
+        nextMatch.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                nextMatchActionPerformed(evt);
+            }
+        });
+        searchPanel.add(nextMatch);
+        searchPanel.add(searchStatus);
+
+        getContentPane().add(searchPanel, java.awt.BorderLayout.PAGE_START);
+
         stacktraceList.setLayout(new java.awt.BorderLayout());
 
         stacktraceTable.setModel(new javax.swing.table.DefaultTableModel(
@@ -231,8 +549,70 @@ public class PapertrailUI extends javax.swing.JFrame {
 
         analysisPanels.addTab("Hot Methods", hotMethodPanel);
 
+        butterflyPanel.setLayout(new java.awt.BorderLayout());
+
+        butterflyMethod.setText("Select a method in the hot methods table");
+        butterflyMethod.setBorder(javax.swing.BorderFactory.createEmptyBorder(4, 4, 4, 4));
+        butterflyPanel.add(butterflyMethod, java.awt.BorderLayout.PAGE_START);
+
+        butterflySplit.setOrientation(javax.swing.JSplitPane.VERTICAL_SPLIT);
+        butterflySplit.setResizeWeight(0.5);
+
+        callerTable.setAutoCreateRowSorter(true);
+        callerWrapper.setViewportView(callerTable);
+
+        butterflySplit.setTopComponent(callerWrapper);
+
+        calleeTable.setAutoCreateRowSorter(true);
+        calleeWrapper.setViewportView(calleeTable);
+
+        butterflySplit.setBottomComponent(calleeWrapper);
+
+        butterflyPanel.add(butterflySplit, java.awt.BorderLayout.CENTER);
+
+        analysisPanels.addTab("Callers/Callees", butterflyPanel);
+
+        filesPanel.setLayout(new java.awt.BorderLayout());
+
+        sourceTable.setAutoCreateRowSorter(true);
+        sourceWrapper.setViewportView(sourceTable);
+
+        filesPanel.add(sourceWrapper, java.awt.BorderLayout.CENTER);
+
+        analysisPanels.addTab("Files", filesPanel);
+
+        diffPanel.setLayout(new java.awt.BorderLayout());
+
+        diffWrapper.setViewportView(diffTree);
+
+        diffPanel.add(diffWrapper, java.awt.BorderLayout.CENTER);
+
+        analysisPanels.addTab("Diff", diffPanel);
+
         getContentPane().add(analysisPanels, java.awt.BorderLayout.CENTER);
 
+        statusPanel.setLayout(new java.awt.BorderLayout());
+
+        statusBar.setBorder(javax.swing.BorderFactory.createEmptyBorder(2, 4, 2, 4));
+        statusPanel.add(statusBar, java.awt.BorderLayout.CENTER);
+
+        loadingPanel.setLayout(new java.awt.BorderLayout());
+
+        progressBar.setStringPainted(true);
+        loadingPanel.add(progressBar, java.awt.BorderLayout.CENTER);
+
+        cancelLoading.setText("Cancel");
+        cancelLoading.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                cancelLoadingActionPerformed(evt);
+            }
+        });
+        loadingPanel.add(cancelLoading, java.awt.BorderLayout.LINE_END);
+
+        statusPanel.add(loadingPanel, java.awt.BorderLayout.LINE_END);
+
+        getContentPane().add(statusPanel, java.awt.BorderLayout.PAGE_END);
+
         fileMenu.setMnemonic('f');
         fileMenu.setText("File");
         fileMenu.setToolTipText("");
@@ -246,6 +626,34 @@ public class PapertrailUI extends javax.swing.JFrame {
         });
         fileMenu.add(openfile);
 
+        openBaseline.setMnemonic('b');
+        openBaseline.setText("Compare with Baseline");
+        openBaseline.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                openBaselineActionPerformed(evt);
+            }
+        });
+        fileMenu.add(openBaseline);
+
+        watchDirectory.setMnemonic('w');
+        watchDirectory.setText("Watch Directory");
+        watchDirectory.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                watchDirectoryActionPerformed(evt);
+            }
+        });
+        fileMenu.add(watchDirectory);
+
+        exportFlameGraph.setMnemonic('e');
+        exportFlameGraph.setText("Export Flame Graph");
+        exportFlameGraph.setEnabled(false);
+        exportFlameGraph.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                exportFlameGraphActionPerformed(evt);
+            }
+        });
+        fileMenu.add(exportFlameGraph);
+
         exit.setMnemonic('q');
         exit.setText("Quit");
         exit.addActionListener(new java.awt.event.ActionListener() {
@@ -267,72 +675,321 @@ public class PapertrailUI extends javax.swing.JFrame {
     }//GEN-LAST:event_exitActionPerformed
 
     public void openFile(final File file, final Charset charset) {
-        new SwingWorker<PapertrailParser, Object>() {
+        openFiles(Collections.singletonList(file), charset);
+    }
+
+    /**
+     * Open the given profiles, directories and glob patterns are expanded as
+     * described in {@link MergedProfile#resolveInputs(java.util.List)}.
+     * Multiple files are merged into one profile.
+     */
+    public void openFiles(final List<File> files, final Charset charset) {
+        stopWatching();
+        supersede(profileLoader);
+        profileLoader = new ProfileLoader(files, charset) {
+            @Override
+            protected void loaded(Profile loadedProfile, LoadStatistics statistics) {
+                PapertrailUI.this.profile = loadedProfile;
+                PapertrailUI.this.profileStatistics = statistics;
+                updateFromProfile();
+            }
+
             @Override
-            protected PapertrailParser doInBackground() throws Exception {
-                PapertrailParser parser = new PapertrailParser(file.toPath(), charset);
-                return parser;
+            protected void failed() {
+                PapertrailUI.this.profile = null;
+                PapertrailUI.this.profileStatistics = null;
+                updateFromProfile();
+            }
+        };
+        profileLoader.execute();
+    }
+
+    /**
+     * Open the baseline profile, the currently opened profile is compared
+     * against it in the diff view.
+     */
+    public void openBaselineFiles(final List<File> files, final Charset charset) {
+        supersede(baselineLoader);
+        baselineLoader = new ProfileLoader(files, charset) {
+            @Override
+            protected void loaded(Profile loadedProfile, LoadStatistics statistics) {
+                PapertrailUI.this.baselineProfile = loadedProfile;
+                updateDiff();
+            }
+
+            @Override
+            protected void failed() {
+                PapertrailUI.this.baselineProfile = null;
+                updateDiff();
+            }
+        };
+        baselineLoader.execute();
+    }
+
+    /**
+     * Cancel {@code loader} without reporting it, its result would replace
+     * the one of the load started after it.
+     */
+    private void supersede(ProfileLoader loader) {
+        if (loader != null) {
+            loader.superseded = true;
+            loader.cancel(false);
+        }
+    }
+
+    /**
+     * Loads a profile in the background and shows the progress in the status
+     * bar. A cancelled load leaves the current profile untouched, the
+     * partially loaded data is dropped with the worker.
+     */
+    private abstract class ProfileLoader extends SwingWorker<Profile, Object> implements ProgressMonitor {
+
+        private final List<File> files;
+        private final Charset charset;
+        private final AtomicLong consumed = new AtomicLong();
+        private final LoadStatistics statistics = new LoadStatistics();
+        private volatile long total = 1;
+        private boolean superseded;
+
+        ProfileLoader(List<File> files, Charset charset) {
+            this.files = files;
+            this.charset = charset;
+            activeLoaders.add(this);
+            addPropertyChangeListener(evt -> {
+                if ("progress".equals(evt.getPropertyName()) && !superseded) {
+                    progressBar.setValue((Integer) evt.getNewValue());
+                }
+            });
+            progressBar.setValue(0);
+            statusBar.setText("Loading " + files);
+            loadingPanel.setVisible(true);
+        }
+
+        @Override
+        protected Profile doInBackground() throws Exception {
+            List<Path> inputs = MergedProfile.resolveInputs(files);
+            if (inputs.isEmpty()) {
+                throw new IOException("No profile files found for " + files);
+            }
+            long size = 0;
+            for (Path input : inputs) {
+                size += Files.size(input);
+            }
+            total = Math.max(1, size);
+            return MergedProfile.open(inputs, charset, parserThreads, profileCache, this, statistics);
+        }
+
+        @Override
+        public void consumed(long bytes) {
+            setProgress((int) Math.min(100, consumed.addAndGet(bytes) * 100 / total));
+        }
+
+        @Override
+        protected void done() {
+            activeLoaders.remove(this);
+            loadingPanel.setVisible(!activeLoaders.isEmpty());
+            if (superseded) {
+                return;
+            }
+            if (isCancelled()) {
+                statusBar.setText("Loading " + files + " was cancelled");
+                return;
+            }
+            Profile loadedProfile;
+            try {
+                loadedProfile = get();
+            } catch (ExecutionException | InterruptedException ex) {
+                if (ex.getCause() instanceof CancellationException) {
+                    statusBar.setText("Loading " + files + " was cancelled");
+                    return;
+                }
+                reportLoadFailure(ex);
+                failed();
+                return;
+            }
+            loaded(loadedProfile, statistics);
+        }
+
+        protected abstract void loaded(Profile loadedProfile, LoadStatistics statistics);
+
+        protected abstract void failed();
+    }
+
+    /**
+     * Show the aggregate of the {@code *.pprof} files in {@code directory},
+     * the views are updated when files are added, modified or removed.
+     */
+    public void watchDirectory(final File directory, final Charset charset) {
+        stopWatching();
+        supersede(profileLoader);
+        try {
+            int generation = watchGeneration;
+            directoryWatcher = new ProfileDirectoryWatcher(directory.toPath(), "*.pprof", charset, parserThreads,
+                profileCache, ProfileDirectoryWatcher.DEFAULT_DEBOUNCE_MILLIS,
+                (watchedProfile, sources, statistics) -> SwingUtilities.invokeLater(() -> {
+                    if (generation != watchGeneration) {
+                        return;
+                    }
+                    PapertrailUI.this.profile = watchedProfile;
+                    PapertrailUI.this.profileStatistics = statistics;
+                    updateFromProfile();
+                    sourceTableModel.setSources(sources);
+                }));
+            directoryWatcher.start();
+        } catch (IOException ex) {
+            reportLoadFailure(ex);
+        }
+    }
+
+    private void stopWatching() {
+        watchGeneration++;
+        if (directoryWatcher != null) {
+            try {
+                directoryWatcher.close();
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, null, ex);
+            }
+            directoryWatcher = null;
+        }
+    }
+
+    private void reportLoadFailure(Exception ex) {
+        LOG.log(Level.SEVERE, null, ex);
+        JOptionPane.showMessageDialog(PapertrailUI.this,
+            "Failed to read papertrail profile\n\n" + ex.getMessage(),
+            "Failure",
+            JOptionPane.ERROR_MESSAGE);
+    }
+
+    private void updateDiff() {
+        final Profile currentBaseline = baselineProfile;
+        final Profile currentProfile = profile;
+        if (currentBaseline == null || currentProfile == null) {
+            diffTree.setModel(new DefaultTreeModel(new DiffNode("<>", 0, 0, 0, 0)));
+            return;
+        }
+        new SwingWorker<DiffNode, Object>() {
+            @Override
+            protected DiffNode doInBackground() throws Exception {
+                return ProfileDiff.diff(currentBaseline, currentProfile, parserThreads);
             }
 
             @Override
             protected void done() {
-                super.done();
                 try {
-                    PapertrailUI.this.parser = get();
+                    diffTree.setModel(new DefaultTreeModel(get()));
                 } catch (ExecutionException | InterruptedException ex) {
-                    PapertrailUI.this.parser = null;
                     LOG.log(Level.SEVERE, null, ex);
-                    JOptionPane.showMessageDialog(PapertrailUI.this,
-                        "Failed to read papertrail profile\n\n" + ex.getMessage(),
-                        "Failure",
-                        JOptionPane.ERROR_MESSAGE);
                 }
-                updateFromParser();
             }
         }.execute();
     }
 
-    private void updateFromParser() {
+    private void updateFromProfile() {
+        // Enabled again, once the call tree of the new profile is shown
+        exportFlameGraph.setEnabled(false);
+        symbolIndex = null;
+        updateSearch();
+        traceIndex = null;
+        cancelButterfly();
+        clearButterfly(BUTTERFLY_HINT);
         stacktraceSelectionModel.removeAllElements();
-        if (parser != null) {
-            ArrayList<StackTrace> traces = new ArrayList<>(parser.getStackTraces());
+        if (profile != null) {
+            ArrayList<StackTrace> traces = new ArrayList<>(profile.getStackTraces());
             Collections.sort(traces, (s1, s2) -> Long.signum(s2.getCount() - s1.getCount()));
             traces.stream().forEachOrdered(trace -> stacktraceSelectionModel.addElement(trace));
-            stacktraceSelectionModel.setSelectedItem(traces.get(0));
+            // A watched directory without profiles yields an empty aggregate
+            if (!traces.isEmpty()) {
+                stacktraceSelectionModel.setSelectedItem(traces.get(0));
+            }
         }
-        new SwingWorker<StackTraceElementNode, Object>() {
+        if (profile instanceof MergedProfile) {
+            sourceTableModel.setSources(((MergedProfile) profile).getSources());
+        } else {
+            sourceTableModel.setSources(null);
+        }
+        updateDiff();
+        // Watch snapshots arrive faster than the views of a large profile
+        // are built, results of a superseded worker are dropped
+        if (profileWorker != null) {
+            profileWorker.cancel(false);
+        }
+        final Profile currentProfile = profile;
+        final LoadStatistics statistics = profileStatistics != null ? profileStatistics : new LoadStatistics();
+        profileWorker = new SwingWorker<Object, Object>() {
             @Override
-            protected StackTraceElementNode doInBackground() throws Exception {
-                StackTraceElementNode sten = StackTraceSummarizer.summarize(parser);
-                Map<String,HotMethodElement> hotMethod = new HashMap<>();
-                hotMethodSummarizer(sten, hotMethod);
-                SwingUtilities.invokeLater(() -> calltreeModel.setRoot(sten));
-                SwingUtilities.invokeLater(() -> hotMethodTableModel.setElements(hotMethod.values()));
+            protected Object doInBackground() throws Exception {
+                TreeModel model;
+                Supplier<SymbolIndex> indexer;
+                if (compactCallTree) {
+                    CompactCallTree tree = statistics.time(LoadStatistics.Phase.CALL_TREE, () -> CompactCallTree.build(currentProfile));
+                    statistics.setNodes(tree.size());
+                    model = new CompactCallTreeModel(tree);
+                    indexer = () -> SymbolIndex.build(tree);
+                } else {
+                    StackTraceElementNode root = currentProfile instanceof SummarizedProfile && callTreeLimits.isUnlimited()
+                        ? ((SummarizedProfile) currentProfile).getCallTree()
+                        : statistics.time(LoadStatistics.Phase.CALL_TREE,
+                            () -> StackTraceSummarizer.summarizeUnfinished(currentProfile, parserThreads, callTreeLimits));
+                    statistics.setNodes(LoadStatistics.countNodes(root));
+                    model = new LazyCallTreeModel(root);
+                    indexer = currentProfile == null ? () -> null : () -> SymbolIndex.build(root, currentProfile.getSymbolTable());
+                }
+                List<HotMethodElement> hotMethodList;
+                if (currentProfile instanceof SummarizedProfile) {
+                    hotMethodList = ((SummarizedProfile) currentProfile).getHotMethods();
+                } else {
+                    hotMethodList = statistics.time(LoadStatistics.Phase.HOT_METHODS,
+                        () -> HotMethodAggregator.aggregate(currentProfile, parserThreads).getHotMethods());
+                }
+                if (currentProfile != null) {
+                    statistics.setSymbols(currentProfile.getSymbolTable().size());
+                }
+                String summary = statistics.getSummary();
+                SwingUtilities.invokeLater(() -> {
+                    if (profileWorker != this) {
+                        return;
+                    }
+                    calltreeTree.setModel(model);
+                    exportFlameGraph.setEnabled(currentProfile != null);
+                    hotMethodTableModel.setElements(hotMethodList);
+                    statusBar.setText(summary);
+                    LoadStatistics.publish(statistics);
+                });
+                if (isCancelled()) {
+                    return null;
+                }
+                TraceIndex traces = currentProfile == null ? null : TraceIndex.build(currentProfile);
+                SwingUtilities.invokeLater(() -> {
+                    if (profileWorker == this) {
+                        traceIndex = traces;
+                        updateButterfly();
+                    }
+                });
+                if (isCancelled()) {
+                    return null;
+                }
+                SymbolIndex index = indexer.get();
+                SwingUtilities.invokeLater(() -> {
+                    if (profileWorker == this) {
+                        symbolIndex = index;
+                        updateSearch();
+                    }
+                });
                 return null;
             }
 
             @Override
             protected void done() {
             }
-        }.execute();
-    }
-
-    private static void hotMethodSummarizer(StackTraceElementNode sten, Map<String,HotMethodElement> hotMethodElements) {
-        HotMethodElement hme = hotMethodElements.get(sten.getLocation());
-        if(hme == null) {
-            hme = new HotMethodElement(sten.getLocation());
-            hotMethodElements.put(hme.getLocation(), hme);
-        }
-        hme.setSelfTime(sten.getSelfCount() + hme.getSelfTime());
-        hme.setTotalTime(sten.getCount() + hme.getTotalTime());
-        for(StackTraceElementNode childSten: sten.getChildren()) {
-            hotMethodSummarizer(childSten, hotMethodElements);
-        }
+        };
+        profileWorker.execute();
     }
 
     private static File lastLocation = null;
     private static FileFilter selectedFilter = null;
     private static final FileFilter pprofFilter = new FileNameExtensionFilter("pprof File", "pprof");
+    private static final FileFilter htmlFilter = new FileNameExtensionFilter("HTML File", "html", "htm");
     private static final Charset[] charsetSelection;
     static {
         ArrayList<Charset> charsets = new ArrayList<>(Charset.availableCharsets().values());
@@ -340,11 +997,110 @@ public class PapertrailUI extends javax.swing.JFrame {
         charsetSelection = charsets.toArray(new Charset[0]);
     }
     private void openfileActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_openfileActionPerformed
+        JComboBox<Charset> charsetComboBox = new JComboBox<>(charsetSelection);
+        JFileChooser fileChooser = createFileChooser(charsetComboBox);
+        if (JFileChooser.APPROVE_OPTION == fileChooser.showOpenDialog(this)) {
+            lastLocation = fileChooser.getCurrentDirectory();
+            selectedFilter = fileChooser.getFileFilter();
+            openFiles(Arrays.asList(fileChooser.getSelectedFiles()), (Charset) charsetComboBox.getSelectedItem());
+        }
+    }//GEN-LAST:event_openfileActionPerformed
+
+    private void openBaselineActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_openBaselineActionPerformed
+        JComboBox<Charset> charsetComboBox = new JComboBox<>(charsetSelection);
+        JFileChooser fileChooser = createFileChooser(charsetComboBox);
+        fileChooser.setDialogTitle("Open Baseline");
+        if (JFileChooser.APPROVE_OPTION == fileChooser.showOpenDialog(this)) {
+            lastLocation = fileChooser.getCurrentDirectory();
+            selectedFilter = fileChooser.getFileFilter();
+            openBaselineFiles(Arrays.asList(fileChooser.getSelectedFiles()), (Charset) charsetComboBox.getSelectedItem());
+            analysisPanels.setSelectedComponent(diffPanel);
+        }
+    }//GEN-LAST:event_openBaselineActionPerformed
+
+    private void searchFieldActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_searchFieldActionPerformed
+        showSearchMatch(1);
+    }//GEN-LAST:event_searchFieldActionPerformed
+
+    private void previousMatchActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_previousMatchActionPerformed
+        showSearchMatch(-1);
+    }//GEN-LAST:event_previousMatchActionPerformed
+
+    private void nextMatchActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_nextMatchActionPerformed
+        showSearchMatch(1);
+    }//GEN-LAST:event_nextMatchActionPerformed
+
+    private void cancelLoadingActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_cancelLoadingActionPerformed
+        for (ProfileLoader loader : new ArrayList<>(activeLoaders)) {
+            loader.cancel(false);
+        }
+    }//GEN-LAST:event_cancelLoadingActionPerformed
+
+    private void watchDirectoryActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_watchDirectoryActionPerformed
+        JComboBox<Charset> charsetComboBox = new JComboBox<>(charsetSelection);
+        JFileChooser fileChooser = createFileChooser(charsetComboBox);
+        fileChooser.setDialogTitle("Watch Directory");
+        fileChooser.setMultiSelectionEnabled(false);
+        fileChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        if (JFileChooser.APPROVE_OPTION == fileChooser.showOpenDialog(this)) {
+            lastLocation = fileChooser.getCurrentDirectory();
+            watchDirectory(fileChooser.getSelectedFile(), (Charset) charsetComboBox.getSelectedItem());
+        }
+    }//GEN-LAST:event_watchDirectoryActionPerformed
+
+    private void exportFlameGraphActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_exportFlameGraphActionPerformed
+        if (profile == null) {
+            return;
+        }
+        TreeModel model = calltreeTree.getModel();
+        if (model instanceof LazyCallTreeModel) {
+            // Export the complete tree, not only the pages loaded so far
+            model = new DefaultTreeModel(((LazyCallTreeModel) model).getRoot().getNode());
+        }
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setCurrentDirectory(lastLocation);
+        fileChooser.setDialogTitle("Export Flame Graph");
+        fileChooser.setFileFilter(htmlFilter);
+        if (JFileChooser.APPROVE_OPTION == fileChooser.showSaveDialog(this)) {
+            lastLocation = fileChooser.getCurrentDirectory();
+            File target = fileChooser.getSelectedFile();
+            if (target.getName().indexOf('.') < 0) {
+                target = new File(target.getParentFile(), target.getName() + ".html");
+            }
+            exportFlameGraph(model, target);
+        }
+    }//GEN-LAST:event_exportFlameGraphActionPerformed
+
+    private void exportFlameGraph(final TreeModel model, final File target) {
+        new SwingWorker<Object, Object>() {
+            @Override
+            protected Object doInBackground() throws Exception {
+                try (Writer writer = Files.newBufferedWriter(target.toPath(), StandardCharsets.UTF_8)) {
+                    new FlameGraphWriter().write(model, getTitle(), writer);
+                }
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    get();
+                } catch (ExecutionException | InterruptedException ex) {
+                    LOG.log(Level.SEVERE, null, ex);
+                    JOptionPane.showMessageDialog(PapertrailUI.this,
+                        "Failed to write flame graph\n\n" + ex.getMessage(),
+                        "Failure",
+                        JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
+
+    private static JFileChooser createFileChooser(JComboBox<Charset> charsetComboBox) {
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setCurrentDirectory(lastLocation);
         fileChooser.setAcceptAllFileFilterUsed(true);
         fileChooser.addChoosableFileFilter(pprofFilter);
-        JComboBox<Charset> charsetComboBox = new JComboBox<>(charsetSelection);
         charsetComboBox.setSelectedItem(StandardCharsets.UTF_8);
         JPanel panel = new JPanel();
         panel.setLayout(new GridBagLayout());
@@ -358,21 +1114,29 @@ public class PapertrailUI extends javax.swing.JFrame {
         gbc.gridy = 1;
         panel.add(charsetComboBox, gbc);
         fileChooser.setAccessory(panel);
+        fileChooser.setMultiSelectionEnabled(true);
+        fileChooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
         fileChooser.setFileFilter(selectedFilter == null ? pprofFilter : selectedFilter);
-        if (JFileChooser.APPROVE_OPTION == fileChooser.showOpenDialog(this)) {
-            lastLocation = fileChooser.getCurrentDirectory();
-            selectedFilter = fileChooser.getFileFilter();
-            openFile(fileChooser.getSelectedFile(), (Charset) charsetComboBox.getSelectedItem());
-        }
-    }//GEN-LAST:event_openfileActionPerformed
+        return fileChooser;
+    }
 
-    public static void start(final File filePath, final Charset charset) {
+    public static void start(final List<File> files, final List<File> baselineFiles, final File watchDirectory, final Charset charset, final int threads, final boolean compact, final ProfileCache cache, final CallTreeLimits limits) {
         java.awt.EventQueue.invokeLater(new Runnable() {
             public void run() {
                 PapertrailUI ptu = new PapertrailUI();
+                ptu.setParserThreads(threads);
+                ptu.setCompactCallTree(compact);
+                ptu.setProfileCache(cache);
+                ptu.setCallTreeLimits(limits);
                 ptu.setVisible(true);
-                if(filePath != null) {
-                    ptu.openFile(filePath, charset);
+                if(files != null && ! files.isEmpty()) {
+                    ptu.openFiles(files, charset);
+                }
+                if(baselineFiles != null && ! baselineFiles.isEmpty()) {
+                    ptu.openBaselineFiles(baselineFiles, charset);
+                }
+                if(watchDirectory != null) {
+                    ptu.watchDirectory(watchDirectory, charset);
                 }
             }
         });
@@ -380,19 +1144,46 @@ public class PapertrailUI extends javax.swing.JFrame {
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JTabbedPane analysisPanels;
+    private javax.swing.JLabel butterflyMethod;
+    private javax.swing.JPanel butterflyPanel;
+    private javax.swing.JSplitPane butterflySplit;
+    private javax.swing.JTable calleeTable;
+    private javax.swing.JScrollPane calleeWrapper;
+    private javax.swing.JTable callerTable;
+    private javax.swing.JScrollPane callerWrapper;
     private javax.swing.JPanel calltreePanel;
     private javax.swing.JTree calltreeTree;
     private javax.swing.JScrollPane calltreeWrapper;
+    private javax.swing.JButton cancelLoading;
+    private javax.swing.JPanel diffPanel;
+    private javax.swing.JTree diffTree;
+    private javax.swing.JScrollPane diffWrapper;
     private javax.swing.JMenuItem exit;
+    private javax.swing.JMenuItem exportFlameGraph;
     private javax.swing.JMenu fileMenu;
+    private javax.swing.JPanel filesPanel;
     private javax.swing.JPanel hotMethodPanel;
     private javax.swing.JTable hotMethodTable;
     private javax.swing.JScrollPane hotMethodWrapper;
     private javax.swing.JMenuBar jMenuBar1;
+    private javax.swing.JPanel loadingPanel;
+    private javax.swing.JButton nextMatch;
+    private javax.swing.JMenuItem openBaseline;
     private javax.swing.JMenuItem openfile;
+    private javax.swing.JButton previousMatch;
+    private javax.swing.JProgressBar progressBar;
+    private javax.swing.JTextField searchField;
+    private javax.swing.JLabel searchLabel;
+    private javax.swing.JPanel searchPanel;
+    private javax.swing.JLabel searchStatus;
     private javax.swing.JPanel stacktraceList;
+    private javax.swing.JTable sourceTable;
+    private javax.swing.JScrollPane sourceWrapper;
     private javax.swing.JComboBox<StackTrace> stacktraceSelector;
     private javax.swing.JTable stacktraceTable;
     private javax.swing.JScrollPane stacktraceTableWrapper;
+    private javax.swing.JLabel statusBar;
+    private javax.swing.JPanel statusPanel;
+    private javax.swing.JMenuItem watchDirectory;
     // End of variables declaration//GEN-END:variables
 }
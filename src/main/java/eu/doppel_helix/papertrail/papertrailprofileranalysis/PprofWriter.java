@@ -0,0 +1,260 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a profile in the gzip compressed {@code profile.proto} format read
+ * by the pprof tools.
+ *
+ * <p>Samples are encoded as they are visited, the location, function and
+ * string tables are written by {@link #close()}. Protobuf allows the
+ * repeated fields of a message in any order, so nothing but the set of used
+ * symbols has to be kept in memory. Each symbol becomes one function and one
+ * location with id {@code symbolId + 1}, only symbols referenced by a sample
+ * are written.</p>
+ */
+public class PprofWriter implements ProfileRecordVisitor, Closeable {
+
+    // Field numbers of the messages in profile.proto
+    private static final int PROFILE_SAMPLE_TYPE = 1;
+    private static final int PROFILE_SAMPLE = 2;
+    private static final int PROFILE_MAPPING = 3;
+    private static final int PROFILE_LOCATION = 4;
+    private static final int PROFILE_FUNCTION = 5;
+    private static final int PROFILE_STRING_TABLE = 6;
+    private static final int VALUE_TYPE_TYPE = 1;
+    private static final int VALUE_TYPE_UNIT = 2;
+    private static final int SAMPLE_LOCATION_ID = 1;
+    private static final int SAMPLE_VALUE = 2;
+    private static final int MAPPING_ID = 1;
+    private static final int MAPPING_FILENAME = 5;
+    private static final int MAPPING_HAS_FUNCTIONS = 7;
+    private static final int LOCATION_ID = 1;
+    private static final int LOCATION_MAPPING_ID = 2;
+    private static final int LOCATION_LINE = 4;
+    private static final int LINE_FUNCTION_ID = 1;
+    private static final int FUNCTION_ID = 1;
+    private static final int FUNCTION_NAME = 2;
+    private static final int FUNCTION_SYSTEM_NAME = 3;
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+
+    private final OutputStream out;
+    private final BitSet usedSymbols = new BitSet();
+    private SymbolTable symbolTable;
+    private String binary;
+    // Encoding buffer for a single message
+    private byte[] message = new byte[256];
+    private int messageLength;
+    private boolean closed;
+
+    /**
+     * @param out target of the compressed profile, closed by
+     *            {@link #close()}
+     */
+    public PprofWriter(OutputStream out) throws IOException {
+        this.out = new BufferedOutputStream(new GZIPOutputStream(out, 64 * 1024), 64 * 1024);
+        // The strings "samples" and "count" get the indices 1 and 2 in
+        // writeTables
+        messageLength = 0;
+        putVarintField(VALUE_TYPE_TYPE, 1);
+        putVarintField(VALUE_TYPE_UNIT, 2);
+        writeMessage(PROFILE_SAMPLE_TYPE);
+    }
+
+    @Override
+    public void visitSymbols(String binary, SymbolTable symbolTable) {
+        if (this.symbolTable != null && this.symbolTable != symbolTable) {
+            throw new IllegalStateException("All traces must use the same symbol table");
+        }
+        this.binary = binary;
+        this.symbolTable = symbolTable;
+    }
+
+    @Override
+    public void visitRecord(long count, int[] frames, int depth) {
+        if (depth == 0) {
+            return;
+        }
+        long idsLength = 0;
+        for (int i = 0; i < depth; i++) {
+            idsLength += varintSize(frames[i] + 1L);
+        }
+        messageLength = 0;
+        // location_id and value are packed, frames are already ordered from
+        // the leaf to the root as required by pprof
+        putTag(SAMPLE_LOCATION_ID, WIRE_LENGTH_DELIMITED);
+        putVarint(idsLength);
+        for (int i = 0; i < depth; i++) {
+            putVarint(frames[i] + 1L);
+            usedSymbols.set(frames[i]);
+        }
+        putTag(SAMPLE_VALUE, WIRE_LENGTH_DELIMITED);
+        putVarint(varintSize(count));
+        putVarint(count);
+        try {
+            writeMessage(PROFILE_SAMPLE);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Add all traces of {@code profile}.
+     */
+    public void add(Profile profile) throws IOException {
+        visitSymbols(profile.getBinary(), profile.getSymbolTable());
+        int[] frames = new int[64];
+        try {
+            for (StackTrace st : profile.getStackTraces()) {
+                if (frames.length < st.getDepth()) {
+                    frames = new int[st.getDepth() * 2];
+                }
+                for (int i = 0; i < st.getDepth(); i++) {
+                    frames[i] = st.getSymbolId(i);
+                }
+                visitRecord(st.getCount(), frames, st.getDepth());
+            }
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Write the mapping, location, function and string tables and finish the
+     * compressed stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writeTables();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeTables() throws IOException {
+        // String table: "", "samples", "count", the binary, function names
+        int nextString = 3;
+        int binaryString = 0;
+        if (binary != null) {
+            binaryString = nextString++;
+            messageLength = 0;
+            putVarintField(MAPPING_ID, 1);
+            putVarintField(MAPPING_FILENAME, binaryString);
+            putVarintField(MAPPING_HAS_FUNCTIONS, 1);
+            writeMessage(PROFILE_MAPPING);
+        }
+        for (int symbolId = usedSymbols.nextSetBit(0); symbolId >= 0; symbolId = usedSymbols.nextSetBit(symbolId + 1)) {
+            long id = symbolId + 1L;
+            messageLength = 0;
+            putVarintField(FUNCTION_ID, id);
+            putVarintField(FUNCTION_NAME, nextString);
+            putVarintField(FUNCTION_SYSTEM_NAME, nextString);
+            writeMessage(PROFILE_FUNCTION);
+            nextString++;
+
+            messageLength = 0;
+            putVarintField(LOCATION_ID, id);
+            if (binary != null) {
+                putVarintField(LOCATION_MAPPING_ID, 1);
+            }
+            putTag(LOCATION_LINE, WIRE_LENGTH_DELIMITED);
+            putVarint(1 + varintSize(id));
+            putVarintField(LINE_FUNCTION_ID, id);
+            writeMessage(PROFILE_LOCATION);
+        }
+        writeString("");
+        writeString("samples");
+        writeString("count");
+        if (binary != null) {
+            writeString(binary);
+        }
+        for (int symbolId = usedSymbols.nextSetBit(0); symbolId >= 0; symbolId = usedSymbols.nextSetBit(symbolId + 1)) {
+            writeString(symbolTable.getName(symbolId));
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, (PROFILE_STRING_TABLE << 3) | WIRE_LENGTH_DELIMITED);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Write the content of the message buffer as field {@code field} of the
+     * profile.
+     */
+    private void writeMessage(int field) throws IOException {
+        writeVarint(out, (field << 3) | WIRE_LENGTH_DELIMITED);
+        writeVarint(out, messageLength);
+        out.write(message, 0, messageLength);
+    }
+
+    private void putVarintField(int field, long value) {
+        putTag(field, WIRE_VARINT);
+        putVarint(value);
+    }
+
+    private void putTag(int field, int wireType) {
+        putVarint((field << 3) | wireType);
+    }
+
+    private void putVarint(long value) {
+        if (messageLength + 10 > message.length) {
+            message = Arrays.copyOf(message, message.length * 2);
+        }
+        while ((value & ~0x7FL) != 0) {
+            message[messageLength++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        message[messageLength++] = (byte) value;
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,554 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Directory of sidecar files holding the symbol table, the finished call tree
+ * and the hot method table of parsed profiles, so that reopening a profile
+ * does not need to replay the raw samples.
+ *
+ * <p>An entry is keyed by the size and the modification time of the profile
+ * and a hash over its content. To keep the check cheap for large profiles,
+ * the hash covers the head, the tail and evenly spaced blocks of the file.
+ * Entries are memory mapped and read front to back when loaded.
+ * The modification time of an entry is updated on each hit, when the
+ * directory grows above its size limit, the least recently used entries are
+ * removed.</p>
+ */
+public class ProfileCache {
+
+    private static final Logger LOG = Logger.getLogger(ProfileCache.class.getName());
+    private static final int MAGIC = 0x50545043; // PTPC
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".ptcache";
+    private static final int HASH_BLOCK_SIZE = 64 * 1024;
+    private static final int HASH_BLOCKS = 16;
+    // Symbol id, count, child count and self count of a node
+    private static final int MIN_NODE_BYTES = 24;
+
+    private final Path directory;
+    private final long maxSize;
+
+    /**
+     * @param directory directory holding the cache entries, created on
+     *                  demand
+     * @param maxSize   upper limit for the total size of the entries in bytes
+     */
+    public ProfileCache(Path directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    public static Path getDefaultDirectory() {
+        return Paths.get(System.getProperty("user.home"), ".cache", "papertrail-profile-analyser");
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Load {@code input} from the cache or parse it with {@code threads}
+     * threads and store the result in the cache.
+     */
+    public SummarizedProfile open(Path input, Charset charsetOfData, int threads) throws IOException {
+        return open(input, charsetOfData, threads, ProgressMonitor.NONE);
+    }
+
+    /**
+     * Same as {@link #open(java.nio.file.Path, java.nio.charset.Charset, int)},
+     * a cache hit reports the complete input as consumed to {@code monitor}.
+     */
+    public SummarizedProfile open(Path input, Charset charsetOfData, int threads, ProgressMonitor monitor) throws IOException {
+        return open(input, charsetOfData, threads, monitor, new LoadStatistics());
+    }
+
+    /**
+     * Same as {@link #open(java.nio.file.Path, java.nio.charset.Charset, int, ProgressMonitor)},
+     * the timings and sizes of a parse are added to {@code statistics}.
+     */
+    public SummarizedProfile open(Path input, Charset charsetOfData, int threads, ProgressMonitor monitor, LoadStatistics statistics) throws IOException {
+        Key key = Key.of(input, charsetOfData);
+        Path entry = directory.resolve(key.getFileName());
+        if (Files.isRegularFile(entry)) {
+            try {
+                SummarizedProfile result = read(entry, key);
+                if (result != null) {
+                    Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+                    monitor.consumed(Files.size(input));
+                    return result;
+                }
+            } catch (IOException | RuntimeException ex) {
+                LOG.log(Level.INFO, "Ignoring unreadable cache entry " + entry, ex);
+            }
+        }
+        PapertrailParser parser = new PapertrailParser(input, charsetOfData, threads, monitor, statistics);
+        StackTraceElementNode callTree = statistics.time(LoadStatistics.Phase.CALL_TREE, () -> StackTraceSummarizer.summarize(parser, threads));
+        HotMethodAggregator hotMethods = statistics.time(LoadStatistics.Phase.HOT_METHODS, () -> HotMethodAggregator.aggregate(parser, threads));
+        try {
+            Files.createDirectories(directory);
+            // Entries are mapped as a single buffer, so larger entries could
+            // not be read back. Entries above the cache size would only
+            // evict all other entries.
+            long maxEntrySize = Math.min(Integer.MAX_VALUE, maxSize);
+            if (write(entry, key, parser, callTree, hotMethods, maxEntrySize)) {
+                evict(entry);
+            } else {
+                LOG.log(Level.INFO, "Not caching {0}, the entry exceeds {1} bytes", new Object[]{input, maxEntrySize});
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Failed to write cache entry " + entry, ex);
+        }
+        return new SummarizedProfile(parser.getBinary(), parser.getSymbolTable(), parser.getStackTraces(), callTree, hotMethods.getHotMethods());
+    }
+
+    /**
+     * Map each node, that ends a trace, to the index of the first trace
+     * ending there. Merged traces sorted by this index let the children of
+     * each call tree node appear in the original order, so the tree rebuilt
+     * from them is identical, including the order of children with equal
+     * counts.
+     */
+    private static Map<StackTraceElementNode, Integer> firstTraceEnding(StackTraceElementNode callTree, List<StackTrace> traces) {
+        Map<StackTraceElementNode, Integer> result = new IdentityHashMap<>();
+        for (int i = 0; i < traces.size(); i++) {
+            StackTrace st = traces.get(i);
+            StackTraceElementNode node = callTree;
+            for (int j = st.getDepth() - 1; j >= 0 && node != null; j--) {
+                node = node.findChild(st.getSymbolId(j));
+            }
+            if (node != null) {
+                result.putIfAbsent(node, i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return {@code false} if the entry would exceed {@code maxEntrySize}
+     *         bytes, nothing is written in this case
+     */
+    private static boolean write(Path entry, Key key, Profile profile, StackTraceElementNode callTree, HotMethodAggregator hotMethods, long maxEntrySize) throws IOException {
+        // Rejects the entries of huge call trees before anything is written,
+        // the limited stream catches the remaining cases
+        if (LoadStatistics.countNodes(callTree) * MIN_NODE_BYTES > maxEntrySize) {
+            return false;
+        }
+        String binary = profile.getBinary();
+        SymbolTable symbolTable = profile.getSymbolTable();
+        Map<StackTraceElementNode, Integer> traceOrder = firstTraceEnding(callTree, profile.getStackTraces());
+        Path temp = Files.createTempFile(entry.getParent(), "entry", ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new LimitedOutputStream(Files.newOutputStream(temp), maxEntrySize), 256 * 1024))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                key.write(out);
+                out.writeBoolean(binary != null);
+                if (binary != null) {
+                    writeString(out, binary);
+                }
+                out.writeInt(symbolTable.size());
+                for (int i = 0; i < symbolTable.size(); i++) {
+                    writeString(out, symbolTable.getName(i));
+                }
+                // Nodes in pre-order, each node is followed by its children
+                List<StackTraceElementNode> nodes = new ArrayList<>();
+                ArrayDeque<StackTraceElementNode> pending = new ArrayDeque<>();
+                pending.push(callTree);
+                while (!pending.isEmpty()) {
+                    StackTraceElementNode node = pending.pop();
+                    nodes.add(node);
+                    for (int i = node.getChildCount() - 1; i >= 0; i--) {
+                        pending.push(node.getChildAt(i));
+                    }
+                }
+                out.writeInt(nodes.size());
+                for (StackTraceElementNode node : nodes) {
+                    out.writeInt(node.getSymbolId());
+                    out.writeLong(node.getCount());
+                    out.writeInt(node.getChildCount());
+                    out.writeLong(node.getSelfCount());
+                    if (node.getSelfCount() > 0) {
+                        Integer order = traceOrder.get(node);
+                        out.writeInt(order == null ? Integer.MAX_VALUE : order);
+                    }
+                }
+                int hotMethodCount = 0;
+                for (int i = 0; i < symbolTable.size(); i++) {
+                    if (hotMethods.getTotalCount(i) > 0) {
+                        hotMethodCount++;
+                    }
+                }
+                out.writeInt(hotMethodCount);
+                for (int i = 0; i < symbolTable.size(); i++) {
+                    if (hotMethods.getTotalCount(i) > 0) {
+                        out.writeInt(i);
+                        out.writeLong(hotMethods.getSelfCount(i));
+                        out.writeLong(hotMethods.getTotalCount(i));
+                    }
+                }
+            }
+            Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (EntryTooLargeException ex) {
+            return false;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * @return the cached profile or {@code null} if the entry belongs to a
+     *         different key or version
+     */
+    private static SummarizedProfile read(Path entry, Key key) throws IOException {
+        ByteBuffer in;
+        try (FileChannel fc = FileChannel.open(entry, StandardOpenOption.READ)) {
+            if (fc.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            in = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        }
+        if (in.getInt() != MAGIC || in.getInt() != VERSION || !key.equals(Key.read(in))) {
+            return null;
+        }
+        String binary = in.get() != 0 ? readString(in) : null;
+        SymbolTable symbolTable = new SymbolTable();
+        int symbolCount = in.getInt();
+        for (int i = 0; i < symbolCount; i++) {
+            if (symbolTable.intern(readString(in)) != i) {
+                throw new IOException("Duplicate symbol in cache entry");
+            }
+        }
+        int nodeCount = in.getInt();
+        StackTraceElementNode root = new StackTraceElementNode();
+        root.setLocation("<>");
+        in.getInt();
+        root.setCount(in.getLong());
+        long total = root.getCount();
+        root.setTotal(total);
+        // Parents with the number of children still to be read
+        ArrayDeque<StackTraceElementNode> parents = new ArrayDeque<>();
+        ArrayDeque<int[]> remaining = new ArrayDeque<>();
+        pushParent(parents, remaining, root, in.getInt());
+        if (in.getLong() > 0) {
+            in.getInt();
+        }
+        List<StackTrace> stackTraces = new ArrayList<>();
+        long[] traceOrder = new long[1024];
+        // Symbol ids of the current path, outermost frame first
+        int[] path = new int[64];
+        int[] frames = new int[64];
+        for (int i = 1; i < nodeCount; i++) {
+            if (parents.isEmpty()) {
+                throw new IOException("Invalid call tree in cache entry");
+            }
+            StackTraceElementNode node = new StackTraceElementNode();
+            int symbolId = in.getInt();
+            node.setSymbolId(symbolId);
+            node.setLocation(symbolTable.getName(symbolId));
+            node.setCount(in.getLong());
+            node.setTotal(total);
+            parents.peek().add(node);
+            if (--remaining.peek()[0] == 0) {
+                parents.pop().updateDerivedValues();
+                remaining.pop();
+            }
+            pushParent(parents, remaining, node, in.getInt());
+            int depth = node.getDepth();
+            if (path.length < depth) {
+                path = Arrays.copyOf(path, depth * 2);
+                frames = new int[path.length];
+            }
+            path[depth - 1] = symbolId;
+            long self = in.getLong();
+            if (self > 0) {
+                if (stackTraces.size() == traceOrder.length) {
+                    traceOrder = Arrays.copyOf(traceOrder, traceOrder.length * 2);
+                }
+                traceOrder[stackTraces.size()] = (((long) in.getInt()) << 32) | stackTraces.size();
+                for (int j = 0; j < depth; j++) {
+                    frames[j] = path[depth - 1 - j];
+                }
+                stackTraces.add(new StackTrace(self, symbolTable, frames, depth));
+            }
+        }
+        List<HotMethodElement> hotMethods = new ArrayList<>();
+        int hotMethodCount = in.getInt();
+        for (int i = 0; i < hotMethodCount; i++) {
+            String location = symbolTable.getName(in.getInt());
+            hotMethods.add(new HotMethodElement(location, in.getLong(), in.getLong()));
+        }
+        return new SummarizedProfile(binary, symbolTable, sortByOrder(stackTraces, traceOrder), root, hotMethods);
+    }
+
+    /**
+     * Sort the traces by the order index in the upper half of
+     * {@code traceOrder}, the lower half holds the index into the list.
+     */
+    private static List<StackTrace> sortByOrder(List<StackTrace> stackTraces, long[] traceOrder) {
+        long[] order = Arrays.copyOf(traceOrder, stackTraces.size());
+        Arrays.sort(order);
+        List<StackTrace> result = new ArrayList<>(order.length);
+        for (long entry : order) {
+            result.add(stackTraces.get((int) entry));
+        }
+        return result;
+    }
+
+    private static void pushParent(ArrayDeque<StackTraceElementNode> parents, ArrayDeque<int[]> remaining, StackTraceElementNode node, int childCount) {
+        if (childCount > 0) {
+            parents.push(node);
+            remaining.push(new int[]{childCount});
+        } else {
+            node.updateDerivedValues();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] data = new byte[in.getInt()];
+        in.get(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Remove the least recently used entries until the total size of the
+     * directory is below the limit. {@code keep} is never removed.
+     */
+    private void evict(Path keep) throws IOException {
+        List<Path> entries = new ArrayList<>();
+        long totalSize = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path p : ds) {
+                entries.add(p);
+                totalSize += Files.size(p);
+            }
+        }
+        if (totalSize <= maxSize) {
+            return;
+        }
+        entries.sort(Comparator.comparing(ProfileCache::lastAccess));
+        for (Path p : entries) {
+            if (totalSize <= maxSize) {
+                break;
+            }
+            if (!p.equals(keep)) {
+                long size = Files.size(p);
+                Files.deleteIfExists(p);
+                totalSize -= size;
+            }
+        }
+    }
+
+    private static FileTime lastAccess(Path p) {
+        try {
+            return Files.getLastModifiedTime(p);
+        } catch (IOException ex) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static final class EntryTooLargeException extends IOException {
+    }
+
+    /**
+     * Fails with an {@link EntryTooLargeException} once more than
+     * {@code limit} bytes are written.
+     */
+    private static final class LimitedOutputStream extends FilterOutputStream {
+
+        private final long limit;
+        private long written;
+
+        LimitedOutputStream(OutputStream out, long limit) {
+            super(out);
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            count(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            count(len);
+            out.write(b, off, len);
+        }
+
+        private void count(int bytes) throws EntryTooLargeException {
+            written += bytes;
+            if (written > limit) {
+                throw new EntryTooLargeException();
+            }
+        }
+    }
+
+    static final class Key {
+
+        private final long size;
+        private final long lastModified;
+        private final String charset;
+        private final byte[] contentHash;
+
+        private Key(long size, long lastModified, String charset, byte[] contentHash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.charset = charset;
+            this.contentHash = contentHash;
+        }
+
+        static Key of(Path input, Charset charsetOfData) throws IOException {
+            BasicFileAttributes attributes = Files.readAttributes(input, BasicFileAttributes.class);
+            MessageDigest digest = createDigest();
+            try (FileChannel fc = FileChannel.open(input, StandardOpenOption.READ)) {
+                long size = fc.size();
+                ByteBuffer buffer = ByteBuffer.allocate(HASH_BLOCK_SIZE);
+                if (size <= (long) HASH_BLOCK_SIZE * (HASH_BLOCKS + 2)) {
+                    hashBlock(fc, 0, size, buffer, digest);
+                } else {
+                    hashBlock(fc, 0, HASH_BLOCK_SIZE, buffer, digest);
+                    long step = size / (HASH_BLOCKS + 1);
+                    for (int i = 1; i <= HASH_BLOCKS; i++) {
+                        hashBlock(fc, i * step, HASH_BLOCK_SIZE, buffer, digest);
+                    }
+                    hashBlock(fc, size - HASH_BLOCK_SIZE, HASH_BLOCK_SIZE, buffer, digest);
+                }
+            }
+            return new Key(attributes.size(), attributes.lastModifiedTime().toMillis(), charsetOfData.name(), digest.digest());
+        }
+
+        private static void hashBlock(FileChannel fc, long offset, long length, ByteBuffer buffer, MessageDigest digest) throws IOException {
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = fc.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException();
+                }
+                buffer.flip();
+                digest.update(buffer);
+                position += read;
+            }
+        }
+
+        private static MessageDigest createDigest() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        /**
+         * @return name of the cache entry, derived from all parts of the key
+         */
+        String getFileName() {
+            MessageDigest digest = createDigest();
+            ByteBuffer buffer = ByteBuffer.allocate(16);
+            buffer.putLong(size).putLong(lastModified);
+            digest.update(buffer.array());
+            digest.update(charset.getBytes(StandardCharsets.UTF_8));
+            digest.update(contentHash);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.append(SUFFIX).toString();
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(size);
+            out.writeLong(lastModified);
+            writeString(out, charset);
+            out.writeInt(contentHash.length);
+            out.write(contentHash);
+        }
+
+        static Key read(ByteBuffer in) {
+            long size = in.getLong();
+            long lastModified = in.getLong();
+            String charset = readString(in);
+            byte[] contentHash = new byte[in.getInt()];
+            in.get(contentHash);
+            return new Key(size, lastModified, charset, contentHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(contentHash);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return size == other.size
+                && lastModified == other.lastModified
+                && charset.equals(other.charset)
+                && Arrays.equals(contentHash, other.contentHash);
+        }
+    }
+}
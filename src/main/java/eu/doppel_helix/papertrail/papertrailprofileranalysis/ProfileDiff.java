@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Compares the call trees of a baseline and a candidate profile.
+ *
+ * <p>Symbol ids are only valid within one profile, so nodes are aligned by
+ * their location. Both trees are walked simultaneously: the children of two
+ * aligned nodes are sorted by location and matched with a single merge pass,
+ * so no per child lookup into the other tree is necessary.</p>
+ */
+public final class ProfileDiff {
+
+    private static final Comparator<StackTraceElementNode> BY_LOCATION = Comparator.comparing(StackTraceElementNode::getLocation);
+    private static final StackTraceElementNode[] NO_CHILDREN = new StackTraceElementNode[0];
+
+    private ProfileDiff() {
+    }
+
+    public static DiffNode diff(Profile baseline, Profile candidate, int threads) {
+        return diff(StackTraceSummarizer.summarize(baseline, threads), StackTraceSummarizer.summarize(candidate, threads));
+    }
+
+    /**
+     * Create the diff tree for two finished call trees. The children of each
+     * diff node are ordered by {@link DiffNode#BY_DELTA_DESCENDING}.
+     */
+    public static DiffNode diff(StackTraceElementNode baselineRoot, StackTraceElementNode candidateRoot) {
+        long baselineTotal = baselineRoot.getCount();
+        long candidateTotal = candidateRoot.getCount();
+        DiffNode root = new DiffNode(baselineRoot.getLocation(), baselineTotal, baselineTotal, candidateTotal, candidateTotal);
+        Deque<Object[]> pending = new ArrayDeque<>();
+        pending.push(new Object[]{baselineRoot, candidateRoot, root});
+        while (!pending.isEmpty()) {
+            Object[] entry = pending.pop();
+            StackTraceElementNode[] baselineChildren = sortedChildren((StackTraceElementNode) entry[0]);
+            StackTraceElementNode[] candidateChildren = sortedChildren((StackTraceElementNode) entry[1]);
+            DiffNode target = (DiffNode) entry[2];
+            int b = 0;
+            int c = 0;
+            while (b < baselineChildren.length || c < candidateChildren.length) {
+                StackTraceElementNode baselineChild = null;
+                StackTraceElementNode candidateChild = null;
+                if (c == candidateChildren.length) {
+                    baselineChild = baselineChildren[b++];
+                } else if (b == baselineChildren.length) {
+                    candidateChild = candidateChildren[c++];
+                } else {
+                    int cmp = baselineChildren[b].getLocation().compareTo(candidateChildren[c].getLocation());
+                    if (cmp <= 0) {
+                        baselineChild = baselineChildren[b++];
+                    }
+                    if (cmp >= 0) {
+                        candidateChild = candidateChildren[c++];
+                    }
+                }
+                DiffNode child = new DiffNode(
+                    baselineChild != null ? baselineChild.getLocation() : candidateChild.getLocation(),
+                    baselineChild != null ? baselineChild.getCount() : 0,
+                    baselineTotal,
+                    candidateChild != null ? candidateChild.getCount() : 0,
+                    candidateTotal);
+                target.add(child);
+                pending.push(new Object[]{baselineChild, candidateChild, child});
+            }
+            target.sortChildren(DiffNode.BY_DELTA_DESCENDING);
+        }
+        return root;
+    }
+
+    private static StackTraceElementNode[] sortedChildren(StackTraceElementNode node) {
+        if (node == null || node.getChildCount() == 0) {
+            return NO_CHILDREN;
+        }
+        List<StackTraceElementNode> children = node.getChildren();
+        StackTraceElementNode[] result = children.toArray(new StackTraceElementNode[children.size()]);
+        Arrays.sort(result, BY_LOCATION);
+        return result;
+    }
+}
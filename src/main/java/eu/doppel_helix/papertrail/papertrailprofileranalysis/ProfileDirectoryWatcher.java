@@ -0,0 +1,209 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches a directory for new, updated and deleted profile files and keeps a
+ * {@link RollingProfile} of all matching files up to date.
+ *
+ * <p>A file is read, once no change was reported for it for the debounce
+ * delay, so files are not read while they are still written. Files, that
+ * can't be parsed, are skipped until they are modified again. After each
+ * batch of changes the listener receives a snapshot of the aggregate. The
+ * listener is not notified anymore, once {@link #close()} was called.</p>
+ */
+public class ProfileDirectoryWatcher implements Runnable, Closeable {
+
+    private static final Logger LOG = Logger.getLogger(ProfileDirectoryWatcher.class.getName());
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 2000;
+
+    private final Path directory;
+    private final PathMatcher matcher;
+    private final Charset charset;
+    private final int threads;
+    private final ProfileCache cache;
+    private final long debounceMillis;
+    private final Listener listener;
+    private final RollingProfile rollingProfile = new RollingProfile();
+    // Changed files and the time they are due to be read
+    private final Map<Path, Long> pending = new HashMap<>();
+    private final WatchService watchService;
+    private volatile boolean closed;
+
+    /**
+     * @param directory directory to watch, subdirectories are not watched
+     * @param glob      pattern the file names have to match, for example
+     *                  {@code *.pprof}
+     * @param cache     cache used to read the files, can be {@code null}
+     */
+    public ProfileDirectoryWatcher(Path directory, String glob, Charset charset, int threads, ProfileCache cache, long debounceMillis, Listener listener) throws IOException {
+        this.directory = directory;
+        this.matcher = directory.getFileSystem().getPathMatcher("glob:" + glob);
+        this.charset = charset;
+        this.threads = threads;
+        this.cache = cache;
+        this.debounceMillis = debounceMillis;
+        this.listener = listener;
+        this.watchService = directory.getFileSystem().newWatchService();
+        directory.register(watchService,
+            StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY,
+            StandardWatchEventKinds.ENTRY_DELETE);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Run the watch loop in a new daemon thread.
+     */
+    public void start() {
+        Thread thread = new Thread(this, "Watch " + directory);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Read the existing files and process changes until {@link #close()} is
+     * called or the thread is interrupted.
+     */
+    @Override
+    public void run() {
+        try {
+            scanDirectory(0);
+            while (true) {
+                long now = System.currentTimeMillis();
+                long nextDue = Long.MAX_VALUE;
+                for (long due : pending.values()) {
+                    nextDue = Math.min(nextDue, due);
+                }
+                WatchKey key;
+                if (nextDue == Long.MAX_VALUE) {
+                    key = watchService.take();
+                } else if (nextDue > now) {
+                    key = watchService.poll(nextDue - now, TimeUnit.MILLISECONDS);
+                } else {
+                    key = watchService.poll();
+                }
+                if (key != null) {
+                    handleEvents(key);
+                    if (!key.reset()) {
+                        LOG.log(Level.WARNING, "{0} is no longer accessible, stop watching", directory);
+                        return;
+                    }
+                }
+                processDue();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException ex) {
+            // close() was called
+        }
+    }
+
+    private void handleEvents(WatchKey key) {
+        long due = System.currentTimeMillis() + debounceMillis;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                scanDirectory(due);
+                continue;
+            }
+            Path file = directory.resolve((Path) event.context());
+            if (matcher.matches(file.getFileName())) {
+                pending.put(file, due);
+            }
+        }
+    }
+
+    private void scanDirectory(long due) {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory)) {
+            for (Path file : ds) {
+                if (matcher.matches(file.getFileName())) {
+                    pending.put(file, due);
+                }
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Failed to list " + directory, ex);
+        }
+    }
+
+    private void processDue() {
+        long now = System.currentTimeMillis();
+        boolean changed = false;
+        LoadStatistics statistics = new LoadStatistics();
+        for (Iterator<Map.Entry<Path, Long>> it = pending.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Path, Long> entry = it.next();
+            if (entry.getValue() > now) {
+                continue;
+            }
+            it.remove();
+            Path file = entry.getKey();
+            if (!Files.isRegularFile(file)) {
+                changed |= rollingProfile.remove(file);
+                continue;
+            }
+            try {
+                rollingProfile.put(file, MergedProfile.open(Collections.singletonList(file), charset, threads, cache, ProgressMonitor.NONE, statistics));
+                changed = true;
+            } catch (IOException | RuntimeException ex) {
+                // Most likely still being written, the next modification
+                // schedules it again
+                LOG.log(Level.INFO, "Skipping unreadable profile " + file, ex);
+            }
+        }
+        if (changed && !closed) {
+            listener.profileUpdated(rollingProfile.snapshot(), rollingProfile.getSources(), statistics);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        watchService.close();
+    }
+
+    /**
+     * Receives the aggregate after changes were processed, called from the
+     * watching thread. The statistics cover the files read for this batch.
+     */
+    public interface Listener {
+
+        void profileUpdated(SummarizedProfile profile, List<MergedProfile.Source> sources, LoadStatistics statistics);
+    }
+}
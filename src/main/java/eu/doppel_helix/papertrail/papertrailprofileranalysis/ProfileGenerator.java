@@ -0,0 +1,363 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+/**
+ * Writes synthetic profiles in the format read by {@link PapertrailParser}.
+ *
+ * <p>The traces are random walks through a fixed call graph: each symbol has
+ * {@code fanOut} callees, that are derived from the symbol id by hashing, so
+ * the same call paths occur again and again. The callees are picked with a
+ * zipf distribution, a {@code skew} of zero picks them uniformly, larger
+ * values concentrate the samples on the first callees. With probability
+ * {@code recursionRate} a frame calls a method already on the stack instead.
+ * Each record holds one sample, the output only depends on the settings and
+ * the seed.</p>
+ *
+ * <p>The file is written through a direct buffer and a {@link FileChannel},
+ * multi GB files are written at disk speed.</p>
+ */
+public class ProfileGenerator {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final long BASE_ADDRESS = 0x400000L;
+
+    private long samples = 100_000;
+    private int symbols = 10_000;
+    private int minDepth = 8;
+    private int maxDepth = 64;
+    private int fanOut = 8;
+    private double skew = 1;
+    private double recursionRate = 0;
+    private long seed = 42;
+
+    public long getSamples() {
+        return samples;
+    }
+
+    public ProfileGenerator setSamples(long samples) {
+        if (samples < 0) {
+            throw new IllegalArgumentException("samples must not be negative: " + samples);
+        }
+        this.samples = samples;
+        return this;
+    }
+
+    public int getSymbols() {
+        return symbols;
+    }
+
+    public ProfileGenerator setSymbols(int symbols) {
+        if (symbols < 1) {
+            throw new IllegalArgumentException("symbols must be at least 1: " + symbols);
+        }
+        this.symbols = symbols;
+        return this;
+    }
+
+    public int getMinDepth() {
+        return minDepth;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * The depth of each trace is picked uniformly from
+     * {@code [minDepth, maxDepth]}.
+     */
+    public ProfileGenerator setDepth(int minDepth, int maxDepth) {
+        if (minDepth < 1 || maxDepth < minDepth) {
+            throw new IllegalArgumentException(String.format("invalid depth range [%d, %d]", minDepth, maxDepth));
+        }
+        this.minDepth = minDepth;
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    public int getFanOut() {
+        return fanOut;
+    }
+
+    public ProfileGenerator setFanOut(int fanOut) {
+        if (fanOut < 1) {
+            throw new IllegalArgumentException("fanOut must be at least 1: " + fanOut);
+        }
+        this.fanOut = fanOut;
+        return this;
+    }
+
+    public double getSkew() {
+        return skew;
+    }
+
+    public ProfileGenerator setSkew(double skew) {
+        if (skew < 0) {
+            throw new IllegalArgumentException("skew must not be negative: " + skew);
+        }
+        this.skew = skew;
+        return this;
+    }
+
+    public double getRecursionRate() {
+        return recursionRate;
+    }
+
+    public ProfileGenerator setRecursionRate(double recursionRate) {
+        if (recursionRate < 0 || recursionRate > 1) {
+            throw new IllegalArgumentException("recursionRate must be in [0, 1]: " + recursionRate);
+        }
+        this.recursionRate = recursionRate;
+        return this;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public ProfileGenerator setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * @return address of {@code symbol} in the symbol section
+     */
+    public static long address(int symbol) {
+        return BASE_ADDRESS + symbol * 16L;
+    }
+
+    /**
+     * @return name of {@code symbol} in the symbol section
+     */
+    public static String name(int symbol) {
+        return "synthetic::Function" + symbol + "()";
+    }
+
+    /**
+     * Write the profile to {@code target}, an existing file is replaced.
+     *
+     * @return number of bytes written
+     */
+    public long write(Path target) throws IOException {
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            putText(channel, buffer, "--- symbol\nbinary=/usr/bin/synthetic\n");
+            StringBuilder line = new StringBuilder(64);
+            for (int i = 0; i < symbols; i++) {
+                line.setLength(0);
+                String hex = Long.toHexString(address(i));
+                line.append("0x");
+                for (int j = hex.length(); j < 16; j++) {
+                    line.append('0');
+                }
+                line.append(hex).append(' ').append(name(i)).append('\n');
+                putText(channel, buffer, line);
+            }
+            putText(channel, buffer, "---\n--- profile\n");
+
+            putLong(channel, buffer, 0);
+            putLong(channel, buffer, 3);
+            putLong(channel, buffer, 0);
+            putLong(channel, buffer, 1);
+            putLong(channel, buffer, 0);
+
+            double[] calleeDistribution = calleeDistribution();
+            SplittableRandom random = new SplittableRandom(seed);
+            int[] path = new int[maxDepth];
+            for (long sample = 0; sample < samples; sample++) {
+                int depth = minDepth + random.nextInt(maxDepth - minDepth + 1);
+                long caller = -1;
+                for (int level = 0; level < depth; level++) {
+                    if (level > 0 && recursionRate > 0 && random.nextDouble() < recursionRate) {
+                        path[level] = path[random.nextInt(level)];
+                    } else {
+                        int callee = Arrays.binarySearch(calleeDistribution, random.nextDouble());
+                        callee = callee < 0 ? -callee - 1 : callee;
+                        path[level] = (int) Long.remainderUnsigned(mix(caller * fanOut + callee), symbols);
+                    }
+                    caller = path[level];
+                }
+                putLong(channel, buffer, 1);
+                putLong(channel, buffer, depth);
+                // The innermost frame comes first
+                for (int level = depth - 1; level >= 0; level--) {
+                    putLong(channel, buffer, address(path[level]));
+                }
+            }
+
+            putLong(channel, buffer, 0);
+            putLong(channel, buffer, 1);
+            putLong(channel, buffer, 0);
+            flush(channel, buffer);
+            return channel.size();
+        }
+    }
+
+    /**
+     * @return cumulative zipf probabilities of the callee indices
+     */
+    private double[] calleeDistribution() {
+        double[] result = new double[fanOut];
+        double sum = 0;
+        for (int i = 0; i < fanOut; i++) {
+            sum += 1 / Math.pow(i + 1, skew);
+            result[i] = sum;
+        }
+        for (int i = 0; i < fanOut; i++) {
+            result[i] /= sum;
+        }
+        result[fanOut - 1] = 1;
+        return result;
+    }
+
+    private static long mix(long value) {
+        long z = value + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static void putText(FileChannel channel, ByteBuffer buffer, CharSequence text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            if (!buffer.hasRemaining()) {
+                flush(channel, buffer);
+            }
+            // The generated text is ASCII only
+            buffer.put((byte) text.charAt(i));
+        }
+    }
+
+    private static void putLong(FileChannel channel, ByteBuffer buffer, long value) throws IOException {
+        if (buffer.remaining() < Long.BYTES) {
+            flush(channel, buffer);
+        }
+        buffer.putLong(value);
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @SuppressWarnings("UseOfSystemOutOrSystemErr")
+    public static void main(String[] argv) throws IOException {
+        ProfileGenerator defaults = new ProfileGenerator();
+        ArgumentParser parser = ArgumentParsers
+            .newFor("ProfileGenerator")
+            .build()
+            .description("Write a synthetic papertrail profile");
+        parser.addArgument("file")
+            .help("Target file, an existing file is replaced")
+            .type(File.class);
+        parser.addArgument("--samples")
+            .dest("samples")
+            .metavar("count")
+            .help("Number of samples, each sample is written as one record")
+            .type(Long.class)
+            .choices(Arguments.range(0L, Long.MAX_VALUE))
+            .setDefault(defaults.getSamples());
+        parser.addArgument("--symbols")
+            .dest("symbols")
+            .metavar("count")
+            .help("Number of symbols in the symbol section")
+            .type(Integer.class)
+            .choices(Arguments.range(1, Integer.MAX_VALUE))
+            .setDefault(defaults.getSymbols());
+        parser.addArgument("--min-depth")
+            .dest("minDepth")
+            .metavar("depth")
+            .help("Minimum depth of a trace, depths are distributed uniformly")
+            .type(Integer.class)
+            .choices(Arguments.range(1, Integer.MAX_VALUE))
+            .setDefault(defaults.getMinDepth());
+        parser.addArgument("--max-depth")
+            .dest("maxDepth")
+            .metavar("depth")
+            .help("Maximum depth of a trace")
+            .type(Integer.class)
+            .choices(Arguments.range(1, Integer.MAX_VALUE))
+            .setDefault(defaults.getMaxDepth());
+        parser.addArgument("--fan-out")
+            .dest("fanOut")
+            .metavar("count")
+            .help("Number of distinct callees of each method")
+            .type(Integer.class)
+            .choices(Arguments.range(1, Integer.MAX_VALUE))
+            .setDefault(defaults.getFanOut());
+        parser.addArgument("--skew")
+            .dest("skew")
+            .metavar("exponent")
+            .help("Zipf exponent for the choice of the callee, 0 picks callees uniformly")
+            .type(Double.class)
+            .choices(Arguments.range(0d, Double.MAX_VALUE))
+            .setDefault(defaults.getSkew());
+        parser.addArgument("--recursion")
+            .dest("recursionRate")
+            .metavar("rate")
+            .help("Probability, that a frame calls a method already on the stack")
+            .type(Double.class)
+            .choices(Arguments.range(0d, 1d))
+            .setDefault(defaults.getRecursionRate());
+        parser.addArgument("--seed")
+            .dest("seed")
+            .metavar("seed")
+            .help("Seed of the random generator")
+            .type(Long.class)
+            .setDefault(defaults.getSeed());
+        Namespace namespace = parser.parseArgsOrFail(argv);
+        ProfileGenerator generator = new ProfileGenerator();
+        try {
+            generator
+                .setSamples(namespace.getLong("samples"))
+                .setSymbols(namespace.getInt("symbols"))
+                .setDepth(namespace.getInt("minDepth"), namespace.getInt("maxDepth"))
+                .setFanOut(namespace.getInt("fanOut"))
+                .setSkew(namespace.getDouble("skew"))
+                .setRecursionRate(namespace.getDouble("recursionRate"))
+                .setSeed(namespace.getLong("seed"));
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        }
+        File target = namespace.get("file");
+        long start = System.nanoTime();
+        long size = generator.write(target.toPath());
+        System.out.printf("Wrote %d samples, %d bytes to %s in %d ms%n",
+            generator.getSamples(), size, target, (System.nanoTime() - start) / 1_000_000);
+    }
+}
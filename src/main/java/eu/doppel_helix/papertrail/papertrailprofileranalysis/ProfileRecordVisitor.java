@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+/**
+ * Receives the content of a profile while it is decoded by
+ * {@link PapertrailParser#parse(java.nio.file.Path, java.nio.charset.Charset, ProfileRecordVisitor)}.
+ */
+public interface ProfileRecordVisitor {
+
+    /**
+     * Invoked once after the symbol section was read and before the first
+     * record is reported.
+     */
+    default void visitSymbols(String binary, SymbolTable symbolTable) {
+    }
+
+    /**
+     * Invoked for each record of the profile section in file order.
+     *
+     * @param count number of samples for the trace
+     * @param frames symbol ids of the trace elements, innermost frame first.
+     *               The array is reused by the parser and only valid for the
+     *               duration of the call.
+     * @param depth number of valid entries in {@code frames}
+     */
+    void visitRecord(long count, int[] frames, int depth);
+
+    /**
+     * Invoked after the terminating record of the profile section was read.
+     */
+    default void visitEnd() {
+    }
+
+    /**
+     * @return visitor that forwards all calls to each of {@code visitors}
+     */
+    static ProfileRecordVisitor combine(ProfileRecordVisitor... visitors) {
+        return new ProfileRecordVisitor() {
+            @Override
+            public void visitSymbols(String binary, SymbolTable symbolTable) {
+                for (ProfileRecordVisitor visitor : visitors) {
+                    visitor.visitSymbols(binary, symbolTable);
+                }
+            }
+
+            @Override
+            public void visitRecord(long count, int[] frames, int depth) {
+                for (ProfileRecordVisitor visitor : visitors) {
+                    visitor.visitRecord(count, frames, depth);
+                }
+            }
+
+            @Override
+            public void visitEnd() {
+                for (ProfileRecordVisitor visitor : visitors) {
+                    visitor.visitEnd();
+                }
+            }
+        };
+    }
+}
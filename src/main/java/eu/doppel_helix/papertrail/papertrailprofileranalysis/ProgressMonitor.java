@@ -0,0 +1,61 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Receives the progress of a profile load and allows to cancel it.
+ *
+ * <p>The loaders report the bytes consumed from the input files in
+ * increments, the progress is the sum of the increments relative to the sum
+ * of the file sizes. The methods can be called concurrently, when several
+ * files are loaded at once.</p>
+ */
+public interface ProgressMonitor {
+
+    ProgressMonitor NONE = new ProgressMonitor() {
+        @Override
+        public void consumed(long bytes) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    /**
+     * @param bytes number of bytes consumed since the last call
+     */
+    void consumed(long bytes);
+
+    /**
+     * Polled between records and chunks, once it returns {@code true} the
+     * load is aborted with a {@link CancellationException}.
+     */
+    boolean isCancelled();
+
+    /**
+     * @throws CancellationException if the load was cancelled
+     */
+    default void checkCancelled() {
+        if (isCancelled()) {
+            throw new CancellationException("Loading was cancelled");
+        }
+    }
+}
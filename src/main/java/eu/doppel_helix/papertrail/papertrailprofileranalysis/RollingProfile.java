@@ -0,0 +1,378 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Aggregate of a changing set of profile files, used by the watch mode.
+ *
+ * <p>The call tree and the hot method counts are updated in place: the
+ * counts of an added file are added to the existing nodes, the counts of a
+ * replaced or removed file are subtracted again. Only the traces of the
+ * files are kept to allow the subtraction.</p>
+ *
+ * <p>The nodes touched since the last {@link #snapshot()} are tracked, so
+ * a snapshot only copies the changed paths of the call tree and shares the
+ * unchanged subtrees with the previous snapshot. The symbol table only grows
+ * while files are added, it is compacted once most symbols are no longer
+ * used by any file.</p>
+ *
+ * <p>The aggregate is not thread safe, other threads work on the snapshots,
+ * that are not modified after they were created.</p>
+ */
+public class RollingProfile {
+
+    // Compaction is skipped for small tables
+    private static final int MIN_COMPACT_SIZE = 1024;
+    // Above this number of changed nodes the next snapshot copies the whole
+    // tree instead of tracking the changes
+    private static final int MAX_TRACKED_NODES = 256 * 1024;
+
+    private SymbolTable symbolTable;
+    private StackTraceElementNode rootNode;
+    private HotMethodAggregator hotMethods;
+    // Number of files using each symbol
+    private int[] references = new int[0];
+    private int referencedSymbols;
+    private final Map<Path, Entry> entries = new LinkedHashMap<>();
+    // Nodes of the live tree, whose count or children changed since the
+    // last snapshot, always includes the ancestors of a changed node. Not
+    // used if all nodes are considered changed.
+    private final Set<StackTraceElementNode> dirty = Collections.newSetFromMap(new IdentityHashMap<>());
+    private boolean allDirty;
+    private StackTraceElementNode lastSnapshotRoot;
+    private SymbolTable lastSnapshotTable;
+
+    public RollingProfile() {
+        reset();
+    }
+
+    private void reset() {
+        symbolTable = new SymbolTable();
+        rootNode = new StackTraceElementNode();
+        rootNode.setLocation("<>");
+        hotMethods = new HotMethodAggregator();
+        hotMethods.visitSymbols(null, symbolTable);
+        references = new int[symbolTable.size()];
+        referencedSymbols = 0;
+        dirty.clear();
+        allDirty = true;
+        lastSnapshotRoot = null;
+        lastSnapshotTable = null;
+    }
+
+    /**
+     * Add the traces of {@code profile}, replacing the traces previously
+     * added for {@code source}.
+     */
+    public void put(Path source, Profile profile) {
+        remove(source);
+        SymbolTable fileTable = profile.getSymbolTable();
+        // Only the symbols used by the traces are interned
+        int[] mapping = new int[fileTable.size()];
+        Arrays.fill(mapping, -1);
+        List<StackTrace> traces = new ArrayList<>(profile.getStackTraces().size());
+        List<Integer> symbols = new ArrayList<>();
+        long samples = 0;
+        int[] frames = new int[64];
+        for (StackTrace st : profile.getStackTraces()) {
+            if (frames.length < st.getDepth()) {
+                frames = new int[st.getDepth() * 2];
+            }
+            for (int i = 0; i < st.getDepth(); i++) {
+                int fileId = st.getSymbolId(i);
+                if (mapping[fileId] < 0) {
+                    mapping[fileId] = symbolTable.intern(fileTable.getName(fileId));
+                    symbols.add(mapping[fileId]);
+                }
+                frames[i] = mapping[fileId];
+            }
+            traces.add(new StackTrace(st.getCount(), symbolTable, frames, st.getDepth()));
+            samples += st.getCount();
+            add(frames, st.getDepth(), st.getCount());
+        }
+        int[] symbolIds = new int[symbols.size()];
+        for (int i = 0; i < symbolIds.length; i++) {
+            symbolIds[i] = symbols.get(i);
+        }
+        reference(symbolIds, 1);
+        entries.put(source, new Entry(profile.getBinary(), symbolTable, traces, samples, symbolIds));
+    }
+
+    /**
+     * Subtract the traces added for {@code source}, nodes without remaining
+     * samples are removed from the call tree.
+     *
+     * @return {@code true} if traces were added for {@code source}
+     */
+    public boolean remove(Path source) {
+        Entry entry = entries.remove(source);
+        if (entry == null) {
+            return false;
+        }
+        int[] frames = new int[64];
+        for (StackTrace st : entry.traces) {
+            if (frames.length < st.getDepth()) {
+                frames = new int[st.getDepth() * 2];
+            }
+            for (int i = 0; i < st.getDepth(); i++) {
+                frames[i] = st.getSymbolId(i);
+            }
+            add(frames, st.getDepth(), -st.getCount());
+        }
+        // Only the nodes on the changed paths can have lost all samples
+        if (allDirty) {
+            ArrayDeque<StackTraceElementNode> pending = new ArrayDeque<>();
+            pending.push(rootNode);
+            while (!pending.isEmpty()) {
+                StackTraceElementNode node = pending.pop();
+                node.removeChildren(child -> child.getCount() == 0);
+                for (StackTraceElementNode child : node.getChildren()) {
+                    pending.push(child);
+                }
+            }
+        } else {
+            for (StackTraceElementNode node : dirty) {
+                node.removeChildren(child -> child.getCount() == 0);
+            }
+        }
+        reference(entry.symbolIds, -1);
+        int unused = symbolTable.size() - 1 - referencedSymbols;
+        if (symbolTable.size() > MIN_COMPACT_SIZE && unused > referencedSymbols) {
+            compact();
+        }
+        return true;
+    }
+
+    private void add(int[] frames, int depth, long count) {
+        rootNode.setCount(rootNode.getCount() + count);
+        StackTraceSummarizer.addTrace(rootNode, symbolTable, frames, depth, count);
+        hotMethods.visitRecord(count, frames, depth);
+        if (allDirty) {
+            return;
+        }
+        StackTraceElementNode node = rootNode;
+        dirty.add(node);
+        for (int i = depth - 1; i >= 0; i--) {
+            node = node.findChild(frames[i]);
+            dirty.add(node);
+        }
+        if (dirty.size() > MAX_TRACKED_NODES) {
+            allDirty = true;
+            dirty.clear();
+        }
+    }
+
+    private void reference(int[] symbolIds, int delta) {
+        if (references.length < symbolTable.size()) {
+            references = Arrays.copyOf(references, Math.max(symbolTable.size(), references.length * 2));
+        }
+        for (int symbolId : symbolIds) {
+            int before = references[symbolId];
+            references[symbolId] += delta;
+            if (before == 0) {
+                referencedSymbols++;
+            } else if (references[symbolId] == 0) {
+                referencedSymbols--;
+            }
+        }
+    }
+
+    /**
+     * Rebuild the aggregate with a symbol table, that only holds the symbols
+     * of the current files.
+     */
+    private void compact() {
+        List<Map.Entry<Path, Entry>> current = new ArrayList<>(entries.entrySet());
+        entries.clear();
+        reset();
+        for (Map.Entry<Path, Entry> e : current) {
+            put(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * @return number of files currently part of the aggregate
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    public long getSampleCount() {
+        return rootNode.getCount();
+    }
+
+    /**
+     * @return the files of the aggregate, the trace ranges refer to the
+     *         traces of the next {@link #snapshot()}
+     */
+    public List<MergedProfile.Source> getSources() {
+        List<MergedProfile.Source> result = new ArrayList<>(entries.size());
+        int firstTrace = 0;
+        for (Map.Entry<Path, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            result.add(new MergedProfile.Source(e.getKey(), entry.binary, firstTrace, entry.traces.size(), entry.samples));
+            firstTrace += entry.traces.size();
+        }
+        return result;
+    }
+
+    /**
+     * Create a profile with a finished call tree from the current state.
+     *
+     * <p>The snapshot is not modified afterwards. Subtrees, that did not
+     * change since the previous snapshot, are shared with it, so only the
+     * changed paths are copied and sorted. For the nodes of a shared subtree
+     * {@link StackTraceElementNode#getParent()} refers to the equivalent node
+     * of the snapshot, that created the subtree, and
+     * {@link StackTraceElementNode#getTotal()} to its total, the current
+     * total is the count of the root. The traces of the files and the
+     * symbol table are shared as well, the table is only copied if symbols
+     * were added.</p>
+     */
+    public SummarizedProfile snapshot() {
+        if (lastSnapshotTable == null || lastSnapshotTable.size() != symbolTable.size()) {
+            SymbolTable tableCopy = new SymbolTable();
+            for (int i = 0; i < symbolTable.size(); i++) {
+                tableCopy.intern(symbolTable.getName(i));
+            }
+            lastSnapshotTable = tableCopy;
+        }
+        List<StackTrace> traces = new ArrayList<>();
+        String binary = null;
+        for (Entry entry : entries.values()) {
+            if (binary == null) {
+                binary = entry.binary;
+            }
+            if (!entry.published) {
+                // The traces reference the live table until the first
+                // snapshot, the names of their ids don't change afterwards
+                entry.publish(lastSnapshotTable);
+            }
+            traces.addAll(entry.traces);
+        }
+        lastSnapshotRoot = copyChanged();
+        dirty.clear();
+        allDirty = false;
+        return new SummarizedProfile(binary, lastSnapshotTable, traces, lastSnapshotRoot, hotMethods.getHotMethods());
+    }
+
+    /**
+     * Copy the changed nodes of the live tree, unchanged children are taken
+     * from the last snapshot. The tree is walked with an explicit stack, as
+     * its depth is only bounded by the depth of the traces.
+     */
+    private StackTraceElementNode copyChanged() {
+        long total = rootNode.getCount();
+        StackTraceElementNode rootCopy = copyNode(rootNode, total);
+        // Triples of live node, its copy in the last snapshot and its new copy
+        ArrayDeque<StackTraceElementNode[]> pending = new ArrayDeque<>();
+        pending.push(new StackTraceElementNode[]{rootNode, lastSnapshotRoot, rootCopy});
+        while (!pending.isEmpty()) {
+            StackTraceElementNode[] nodes = pending.pop();
+            StackTraceElementNode copy = nodes[2];
+            for (StackTraceElementNode child : nodes[0].getChildren()) {
+                StackTraceElementNode previousChild = nodes[1] == null ? null : nodes[1].findChild(child.getSymbolId());
+                if (previousChild != null && !allDirty && !dirty.contains(child)) {
+                    copy.addShared(previousChild);
+                } else {
+                    StackTraceElementNode childCopy = copyNode(child, total);
+                    copy.add(childCopy);
+                    pending.push(new StackTraceElementNode[]{child, previousChild, childCopy});
+                }
+            }
+            copy.sortChildren(StackTraceSummarizer.BY_COUNT_DESCENDING, false);
+            copy.updateDerivedValues();
+        }
+        return rootCopy;
+    }
+
+    private static StackTraceElementNode copyNode(StackTraceElementNode node, long total) {
+        StackTraceElementNode copy = new StackTraceElementNode();
+        copy.setSymbolId(node.getSymbolId());
+        copy.setLocation(node.getLocation());
+        copy.setCount(node.getCount());
+        copy.setTotal(total);
+        return copy;
+    }
+
+    /**
+     * Traces of a single file, remapped to the table of the aggregate. The
+     * entry is a profile itself, so the files can be added again when the
+     * table is compacted.
+     */
+    private static class Entry implements Profile {
+
+        private final String binary;
+        private SymbolTable table;
+        private List<StackTrace> traces;
+        private final long samples;
+        // Distinct symbols used by the traces
+        private final int[] symbolIds;
+        private boolean published;
+
+        Entry(String binary, SymbolTable table, List<StackTrace> traces, long samples, int[] symbolIds) {
+            this.binary = binary;
+            this.table = table;
+            this.traces = traces;
+            this.samples = samples;
+            this.symbolIds = symbolIds;
+        }
+
+        @Override
+        public String getBinary() {
+            return binary;
+        }
+
+        @Override
+        public SymbolTable getSymbolTable() {
+            return table;
+        }
+
+        @Override
+        public List<StackTrace> getStackTraces() {
+            return traces;
+        }
+
+        void publish(SymbolTable table) {
+            List<StackTrace> result = new ArrayList<>(traces.size());
+            int[] frames = new int[64];
+            for (StackTrace st : traces) {
+                if (frames.length < st.getDepth()) {
+                    frames = new int[st.getDepth() * 2];
+                }
+                for (int i = 0; i < st.getDepth(); i++) {
+                    frames[i] = st.getSymbolId(i);
+                }
+                result.add(new StackTrace(st.getCount(), table, frames, st.getDepth()));
+            }
+            this.table = table;
+            traces = Collections.unmodifiableList(result);
+            published = true;
+        }
+    }
+}
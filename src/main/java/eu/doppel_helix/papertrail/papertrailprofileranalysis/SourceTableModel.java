@@ -0,0 +1,109 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import javax.swing.table.AbstractTableModel;
+
+public class SourceTableModel extends AbstractTableModel {
+
+    private List<MergedProfile.Source> sources = Collections.emptyList();
+    private long totalSamples = 0;
+
+    public List<MergedProfile.Source> getSources() {
+        return sources;
+    }
+
+    public void setSources(Collection<? extends MergedProfile.Source> sources) {
+        if(sources == null) {
+            sources = Collections.emptyList();
+        }
+        this.sources = new ArrayList<>(sources);
+        this.totalSamples = 0;
+        for(MergedProfile.Source source: this.sources) {
+            totalSamples += source.getSampleCount();
+        }
+        fireTableDataChanged();
+    }
+
+    @Override
+    public int getRowCount() {
+        return sources.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return 4;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        MergedProfile.Source source = sources.get(row);
+        switch(column) {
+            case 0:
+                return source.getPath().toString();
+            case 1:
+                return source.getSampleCount();
+            case 2:
+                return source.getTraceCount();
+            case 3:
+                return totalSamples == 0 ? 0d : source.getSampleCount() * 100d / totalSamples;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public boolean isCellEditable(int i, int i1) {
+        return false;
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        switch(column) {
+            case 0:
+                return String.class;
+            case 1:
+                return Long.class;
+            case 2:
+                return Integer.class;
+            case 3:
+                return Double.class;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        switch(column) {
+            case 0:
+                return "File";
+            case 1:
+                return "Samples";
+            case 2:
+                return "Traces";
+            case 3:
+                return "Share (%)";
+            default:
+                return null;
+        }
+    }
+}
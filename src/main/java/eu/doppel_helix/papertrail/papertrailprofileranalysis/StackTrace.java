@@ -16,25 +16,61 @@
 
 package eu.doppel_helix.papertrail.papertrailprofileranalysis;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
 
 public class StackTrace {
 
     private final long count;
-    private final List<String> traceElements;
+    private final SymbolTable symbolTable;
+    private final int[] symbolIds;
 
-    public StackTrace(long count, List<String> traceElements) {
+    /**
+     * @param count number of samples
+     * @param symbolTable table the ids are resolved against
+     * @param symbolIds symbol ids of the frames, innermost frame first
+     * @param depth number of valid entries in {@code symbolIds}
+     */
+    public StackTrace(long count, SymbolTable symbolTable, int[] symbolIds, int depth) {
         this.count = count;
-        this.traceElements = Collections.unmodifiableList(new ArrayList<>(traceElements));
+        this.symbolTable = symbolTable;
+        this.symbolIds = Arrays.copyOf(symbolIds, depth);
     }
 
     public long getCount() {
         return count;
     }
 
+    public SymbolTable getSymbolTable() {
+        return symbolTable;
+    }
+
+    public int getDepth() {
+        return symbolIds.length;
+    }
+
+    /**
+     * @param index frame index, 0 is the innermost frame
+     */
+    public int getSymbolId(int index) {
+        return symbolIds[index];
+    }
+
+    /**
+     * @return read-only view of the frame names, innermost frame first
+     */
     public List<String> getTraceElements() {
-        return traceElements;
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                return symbolTable.getName(symbolIds[index]);
+            }
+
+            @Override
+            public int size() {
+                return symbolIds.length;
+            }
+        };
     }
 }
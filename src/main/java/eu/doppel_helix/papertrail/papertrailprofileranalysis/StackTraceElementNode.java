@@ -21,15 +21,25 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.function.Predicate;
 import javax.swing.tree.TreeNode;
 
-public class StackTraceElementNode implements TreeNode {
+public class StackTraceElementNode implements TreeNode, CallTreeNode {
+    private static final int CHILD_INDEX_THRESHOLD = 8;
     private final List<StackTraceElementNode> children = new ArrayList<>();
+    // Open addressing hash of the children keyed by symbol id, created once
+    // the number of children exceeds CHILD_INDEX_THRESHOLD
+    private StackTraceElementNode[] childIndex;
     private StackTraceElementNode parent = null;
+    private int symbolId = -1;
     private String location = "";
     private long count = 0;
     private long total = 0;
     private long self = 0;
+    // Cached derived values, see updateDerivedValues
+    private boolean derivedValid = false;
+    private int indexInParent = -1;
+    private int depth = 0;
 
     @Override
     public Enumeration<? extends TreeNode> children() {
@@ -61,6 +71,9 @@ public class StackTraceElementNode implements TreeNode {
 
     @Override
     public int getIndex(TreeNode node) {
+        if (derivedValid && node instanceof StackTraceElementNode && ((StackTraceElementNode) node).parent == this) {
+            return ((StackTraceElementNode) node).indexInParent;
+        }
         return children.indexOf(node);
     }
 
@@ -74,6 +87,19 @@ public class StackTraceElementNode implements TreeNode {
         return children.isEmpty();
     }
 
+    /**
+     * @return id of the symbol in the {@link SymbolTable} of the profile or -1
+     *         for synthetic nodes
+     */
+    public int getSymbolId() {
+        return symbolId;
+    }
+
+    public void setSymbolId(int symbolId) {
+        this.symbolId = symbolId;
+    }
+
+    @Override
     public String getLocation() {
         return location;
     }
@@ -82,14 +108,20 @@ public class StackTraceElementNode implements TreeNode {
         this.location = location;
     }
 
+    @Override
     public long getCount() {
         return count;
     }
 
     public void setCount(long count) {
         this.count = count;
+        this.derivedValid = false;
+        if (parent != null) {
+            parent.derivedValid = false;
+        }
     }
 
+    @Override
     public long getTotal() {
         return total;
     }
@@ -98,21 +130,146 @@ public class StackTraceElementNode implements TreeNode {
         this.total = total;
     }
 
+    @Override
     public long getSelfCount() {
+        if (! derivedValid) {
+            updateDerivedValues();
+        }
+        return self;
+    }
+
+    /**
+     * @return distance to the root node, the root has depth 0
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Recalculate the cached self count of this node and the position and
+     * depth of its children. This is invoked for each node when the tree is
+     * finished, modifications to the node or its children invalidate the
+     * cached values.
+     */
+    public void updateDerivedValues() {
         long childCount = 0;
-        for(StackTraceElementNode sten: children) {
-            childCount += sten.getCount();
+        for (int i = 0; i < children.size(); i++) {
+            StackTraceElementNode sten = children.get(i);
+            // Shared children belong to another parent, see addShared
+            if (sten.parent == this) {
+                sten.indexInParent = i;
+                sten.depth = depth + 1;
+            }
+            childCount += sten.count;
         }
-        return getCount() - childCount;
+        self = count - childCount;
+        derivedValid = true;
     }
 
     public void add(StackTraceElementNode ste) {
         ste.setParent(this);
+        ste.depth = depth + 1;
+        addChild(ste);
+    }
+
+    /**
+     * Add a finished subtree of another tree without taking ownership: the
+     * parent and the cached values of {@code ste} are not changed, so the
+     * subtree stays valid in the tree it was created for. Used to share the
+     * unchanged parts of {@link RollingProfile} snapshots.
+     */
+    void addShared(StackTraceElementNode ste) {
+        addChild(ste);
+    }
+
+    private void addChild(StackTraceElementNode ste) {
         this.children.add(ste);
+        this.derivedValid = false;
+        if (childIndex != null) {
+            if (children.size() * 2 > childIndex.length) {
+                rebuildChildIndex(childIndex.length * 2);
+            } else {
+                indexChild(childIndex, ste);
+            }
+        } else if (children.size() > CHILD_INDEX_THRESHOLD) {
+            rebuildChildIndex(Integer.highestOneBit(children.size()) * 4);
+        }
+    }
+
+    /**
+     * Remove the children matching {@code filter} together with their
+     * subtrees.
+     *
+     * @return sum of the counts of the removed children
+     */
+    public long removeChildren(Predicate<StackTraceElementNode> filter) {
+        long[] removed = new long[1];
+        boolean changed = children.removeIf(child -> {
+            if (filter.test(child)) {
+                removed[0] += child.count;
+                child.parent = null;
+                return true;
+            }
+            return false;
+        });
+        if (changed) {
+            derivedValid = false;
+            if (children.size() > CHILD_INDEX_THRESHOLD) {
+                rebuildChildIndex(Integer.highestOneBit(children.size()) * 4);
+            } else {
+                childIndex = null;
+            }
+        }
+        return removed[0];
+    }
+
+    /**
+     * @return the child with the given symbol id or {@code null} if there is
+     *         no such child
+     */
+    public StackTraceElementNode findChild(int childSymbolId) {
+        if (childIndex == null) {
+            for (int i = 0; i < children.size(); i++) {
+                StackTraceElementNode child = children.get(i);
+                if (child.symbolId == childSymbolId) {
+                    return child;
+                }
+            }
+            return null;
+        }
+        int mask = childIndex.length - 1;
+        for (int slot = mix(childSymbolId) & mask; childIndex[slot] != null; slot = (slot + 1) & mask) {
+            if (childIndex[slot].symbolId == childSymbolId) {
+                return childIndex[slot];
+            }
+        }
+        return null;
+    }
+
+    private void rebuildChildIndex(int capacity) {
+        childIndex = new StackTraceElementNode[capacity];
+        for (StackTraceElementNode child : children) {
+            indexChild(childIndex, child);
+        }
+    }
+
+    private static void indexChild(StackTraceElementNode[] index, StackTraceElementNode child) {
+        int mask = index.length - 1;
+        int slot = mix(child.symbolId) & mask;
+        while (index[slot] != null && index[slot].symbolId != child.symbolId) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = child;
+    }
+
+    private static int mix(int value) {
+        value *= 0x9E3779B9;
+        return value ^ (value >>> 16);
     }
 
     public void sortChildren(Comparator<StackTraceElementNode> comparator, boolean recursive) {
         Collections.sort(children, comparator);
+        derivedValid = false;
         if(recursive) {
             for(StackTraceElementNode sten: children) {
                 sten.sortChildren(comparator, recursive);
@@ -17,8 +17,10 @@
 package eu.doppel_helix.papertrail.papertrailprofileranalysis;
 
 import java.awt.BorderLayout;
+import java.awt.Color;
 import java.awt.Component;
 import java.awt.Dimension;
+import java.util.Locale;
 import javax.swing.JPanel;
 import javax.swing.JProgressBar;
 import javax.swing.JTree;
@@ -29,6 +31,8 @@ public final class StackTraceElementTreeElementRenderer implements TreeCellRende
     private final DefaultTreeCellRenderer defaultRenderer = new DefaultTreeCellRenderer();
     private final JPanel resultComponent = new JPanel();
     private final JProgressBar progressBar = new JProgressBar();
+    private final Color backgroundNonSelection;
+    private String highlight;
 
     public StackTraceElementTreeElementRenderer() {
         defaultRenderer.setLeafIcon(null);
@@ -40,16 +44,27 @@ public final class StackTraceElementTreeElementRenderer implements TreeCellRende
         resultComponent.add(progressBar, BorderLayout.WEST);
         resultComponent.add(defaultRenderer);
         resultComponent.setOpaque(false);
+        backgroundNonSelection = defaultRenderer.getBackgroundNonSelectionColor();
+    }
+
+    /**
+     * Highlight the nodes, whose location contains {@code query} ignoring
+     * case, {@code null} or an empty string disable the highlight.
+     */
+    public void setHighlight(String query) {
+        this.highlight = query == null || query.isEmpty() ? null : query.toLowerCase(Locale.ROOT);
     }
 
     @Override
     public Component getTreeCellRendererComponent(JTree tree, Object value, boolean sel, boolean expanded, boolean leaf, int row, boolean hasFocus) {
-        if (value instanceof StackTraceElementNode) {
-            StackTraceElementNode ste = (StackTraceElementNode) value;
+        if (value instanceof CallTreeNode) {
+            CallTreeNode ste = (CallTreeNode) value;
             progressBar.setMaximum((int) ste.getTotal());
             progressBar.setMinimum(0);
             progressBar.setValue((int) ste.getCount());
             progressBar.setString(String.format("[%d / %d] (%d)", ste.getCount(), ste.getTotal(), ste.getSelfCount()));
+            boolean highlighted = highlight != null && ste.getLocation().toLowerCase(Locale.ROOT).contains(highlight);
+            defaultRenderer.setBackgroundNonSelectionColor(highlighted ? Color.YELLOW : backgroundNonSelection);
             defaultRenderer.getTreeCellRendererComponent(tree, ste.getLocation(), sel, expanded, leaf, row, hasFocus);
         }
         defaultRenderer.setSize(defaultRenderer.getPreferredSize());
@@ -15,56 +15,335 @@
  */
 package eu.doppel_helix.papertrail.papertrailprofileranalysis;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 public class StackTraceSummarizer {
 
+    static final Comparator<StackTraceElementNode> BY_COUNT_DESCENDING = (s1, s2) -> Long.signum(s2.getCount() - s1.getCount());
+
     private StackTraceSummarizer() {
     }
 
-    public static StackTraceElementNode summarize(PapertrailParser pp) {
+    public static StackTraceElementNode summarize(Profile pp) {
+        Collector collector = new Collector();
+        if (pp != null) {
+            collector.visitSymbols(pp.getBinary(), pp.getSymbolTable());
+            int[] frames = new int[64];
+            for (StackTrace st : pp.getStackTraces()) {
+                if (frames.length < st.getDepth()) {
+                    frames = new int[st.getDepth() * 2];
+                }
+                for (int i = 0; i < st.getDepth(); i++) {
+                    frames[i] = st.getSymbolId(i);
+                }
+                collector.visitRecord(st.getCount(), frames, st.getDepth());
+            }
+        }
+        return collector.getRoot();
+    }
+
+    /**
+     * Build the call tree using up to {@code threads} threads. The traces are
+     * split into ranges, a partial tree is built per range and the partial
+     * trees are merged pairwise. The result is identical to
+     * {@link #summarize(Profile)}.
+     */
+    public static StackTraceElementNode summarize(Profile pp, int threads) {
+        if (pp == null || threads <= 1) {
+            return summarize(pp);
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<StackTrace> traces = pp.getStackTraces();
+            StackTraceElementNode rootNode = pool.invoke(new PartialTreeTask(traces, pp.getSymbolTable(), CallTreeLimits.NONE, 0, traces.size()));
+            long splitThreshold = Math.max(1, rootNode.getCount() / (threads * 16L));
+            pool.invoke(new FinishTask(rootNode, rootNode.getCount(), splitThreshold));
+            return rootNode;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Build the call tree, folding the paths below {@code limits} into
+     * {@value CallTreeLimits#OTHER_LOCATION} nodes, see
+     * {@link CallTreePruner}.
+     */
+    public static StackTraceElementNode summarize(Profile pp, int threads, CallTreeLimits limits) {
+        if (limits.isUnlimited()) {
+            return summarize(pp, threads);
+        }
+        StackTraceElementNode rootNode = summarizeUnfinished(pp, threads, limits);
+        if (threads <= 1) {
+            finish(rootNode);
+            return rootNode;
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            long splitThreshold = Math.max(1, rootNode.getCount() / (threads * 16L));
+            pool.invoke(new FinishTask(rootNode, rootNode.getCount(), splitThreshold));
+            return rootNode;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Build the call tree without finishing it: the children are in order of
+     * first appearance and the total and the cached values of the nodes are
+     * not set. This skips sorting the whole tree, for consumers like
+     * {@link LazyCallTreeModel}, that only sort the parts they show.
+     */
+    public static StackTraceElementNode summarizeUnfinished(Profile pp, int threads) {
+        return summarizeUnfinished(pp, threads, CallTreeLimits.NONE);
+    }
+
+    public static StackTraceElementNode summarizeUnfinished(Profile pp, int threads, CallTreeLimits limits) {
+        if (pp == null) {
+            return createRoot();
+        }
+        List<StackTrace> traces = pp.getStackTraces();
+        PartialTreeTask task = new PartialTreeTask(traces, pp.getSymbolTable(), limits, 0, traces.size());
+        StackTraceElementNode rootNode;
+        if (threads <= 1) {
+            rootNode = task.buildRange();
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                rootNode = pool.invoke(task);
+            } finally {
+                pool.shutdown();
+            }
+        }
+        CallTreePruner.pruneFinal(rootNode, limits);
+        return rootNode;
+    }
+
+    private static StackTraceElementNode createRoot() {
         StackTraceElementNode rootNode = new StackTraceElementNode();
         rootNode.setLocation("<>");
         rootNode.setCount(0);
         rootNode.setTotal(0);
-        if (pp == null) {
-            return rootNode;
+        return rootNode;
+    }
+
+    /**
+     * Add the counts of {@code source} into {@code target}. Children of
+     * {@code source} not present in {@code target} are moved over, so the
+     * children of {@code target} stay in order of first appearance if
+     * {@code source} was built from later traces.
+     */
+    static void merge(StackTraceElementNode target, StackTraceElementNode source) {
+        ArrayDeque<StackTraceElementNode[]> pending = new ArrayDeque<>();
+        pending.push(new StackTraceElementNode[]{target, source});
+        while (!pending.isEmpty()) {
+            StackTraceElementNode[] pair = pending.pop();
+            pair[0].setCount(pair[0].getCount() + pair[1].getCount());
+            for (StackTraceElementNode sourceChild : pair[1].getChildren()) {
+                StackTraceElementNode targetChild = pair[0].findChild(sourceChild.getSymbolId());
+                if (targetChild == null) {
+                    pair[0].add(sourceChild);
+                } else {
+                    pending.push(new StackTraceElementNode[]{targetChild, sourceChild});
+                }
+            }
         }
-        int total = 0;
-        for (StackTrace st : pp.getStackTraces()) {
-            total += st.getCount();
+    }
+
+    /**
+     * Add a trace to the tree below {@code root}. The frames are walked from
+     * the outermost frame (last element) to the innermost frame (first
+     * element), nodes are only allocated for paths not yet present.
+     *
+     * @return number of created nodes
+     */
+    static int addTrace(StackTraceElementNode root, SymbolTable symbolTable, int[] frames, int depth, long count) {
+        int created = 0;
+        StackTraceElementNode currentNode = root;
+        for (int i = depth - 1; i >= 0; i--) {
+            int currentSymbol = frames[i];
+            StackTraceElementNode childNode = currentNode.findChild(currentSymbol);
+            if (childNode == null) {
+                childNode = new StackTraceElementNode();
+                childNode.setSymbolId(currentSymbol);
+                childNode.setLocation(symbolTable.getName(currentSymbol));
+                currentNode.add(childNode);
+                created++;
+            }
+            childNode.setCount(childNode.getCount() + count);
+            currentNode = childNode;
         }
-        rootNode.setCount(total);
-        rootNode.setTotal(total);
-        for (StackTrace st : pp.getStackTraces()) {
-            ArrayList<String> elements = new ArrayList<>(st.getTraceElements());
-            Collections.reverse(elements);
-            addTrace(rootNode, elements, st.getCount(), total);
+        return created;
+    }
+
+    /**
+     * Set the total on all nodes, sort the children by descending count and
+     * calculate the cached values of the nodes.
+     * The tree is walked with an explicit stack, as the depth of the tree is
+     * only bounded by the depth of the traces.
+     */
+    static void finish(StackTraceElementNode root) {
+        long total = root.getCount();
+        ArrayDeque<StackTraceElementNode> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            StackTraceElementNode node = pending.pop();
+            node.setTotal(total);
+            node.sortChildren(BY_COUNT_DESCENDING, false);
+            node.updateDerivedValues();
+            for (StackTraceElementNode child : node.getChildren()) {
+                pending.push(child);
+            }
         }
-        rootNode.sortChildren((s1, s2) -> Long.signum(s2.getCount() - s1.getCount()), true);
-        return rootNode;
     }
 
-    private static void addTrace(StackTraceElementNode parent, List<String> remainingTrace, long count, long total) {
-        String currentLocation = remainingTrace.get(0);
-        StackTraceElementNode currentNode = null;
-        for (StackTraceElementNode child : parent.getChildren()) {
-            if (child.getLocation().equals(currentLocation)) {
-                currentNode = child;
-                break;
+    private static class PartialTreeTask extends RecursiveTask<StackTraceElementNode> {
+
+        private static final int SEQUENTIAL_THRESHOLD = 8 * 1024;
+
+        private final List<StackTrace> traces;
+        private final SymbolTable symbolTable;
+        private final CallTreeLimits limits;
+        private final int from;
+        private final int to;
+
+        PartialTreeTask(List<StackTrace> traces, SymbolTable symbolTable, CallTreeLimits limits, int from, int to) {
+            this.traces = traces;
+            this.symbolTable = symbolTable;
+            this.limits = limits;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected StackTraceElementNode compute() {
+            if (to - from > SEQUENTIAL_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                PartialTreeTask second = new PartialTreeTask(traces, symbolTable, limits, middle, to);
+                second.fork();
+                StackTraceElementNode result = new PartialTreeTask(traces, symbolTable, limits, from, middle).compute();
+                merge(result, second.join());
+                return result;
+            } else {
+                return buildRange();
+            }
+        }
+
+        StackTraceElementNode buildRange() {
+            StackTraceElementNode rootNode = createRoot();
+            CallTreePruner pruner = new CallTreePruner(limits);
+            int[] frames = new int[64];
+            for (int i = from; i < to; i++) {
+                StackTrace st = traces.get(i);
+                if (frames.length < st.getDepth()) {
+                    frames = new int[st.getDepth() * 2];
+                }
+                for (int j = 0; j < st.getDepth(); j++) {
+                    frames[j] = st.getSymbolId(j);
+                }
+                rootNode.setCount(rootNode.getCount() + st.getCount());
+                pruner.nodesCreated(rootNode, addTrace(rootNode, symbolTable, frames, st.getDepth(), st.getCount()));
             }
+            return rootNode;
         }
-        if (currentNode == null) {
-            currentNode = new StackTraceElementNode();
-            currentNode.setLocation(currentLocation);
-            currentNode.setTotal(total);
-            parent.add(currentNode);
+    }
+
+    /**
+     * Parallel version of {@link #finish(StackTraceElementNode)}. Subtrees
+     * with at least {@code splitThreshold} samples are processed by separate
+     * tasks.
+     */
+    private static class FinishTask extends RecursiveAction {
+
+        private final StackTraceElementNode subtreeRoot;
+        private final long total;
+        private final long splitThreshold;
+
+        FinishTask(StackTraceElementNode subtreeRoot, long total, long splitThreshold) {
+            this.subtreeRoot = subtreeRoot;
+            this.total = total;
+            this.splitThreshold = splitThreshold;
         }
-        currentNode.setCount(currentNode.getCount() + count);
-        if (remainingTrace.size() > 1) {
-            addTrace(currentNode, remainingTrace.subList(1, remainingTrace.size()), count, total);
+
+        @Override
+        protected void compute() {
+            List<FinishTask> forked = new ArrayList<>();
+            ArrayDeque<StackTraceElementNode> pending = new ArrayDeque<>();
+            pending.push(subtreeRoot);
+            while (!pending.isEmpty()) {
+                StackTraceElementNode node = pending.pop();
+                node.setTotal(total);
+                node.sortChildren(BY_COUNT_DESCENDING, false);
+                node.updateDerivedValues();
+                for (StackTraceElementNode child : node.getChildren()) {
+                    if (child.getCount() >= splitThreshold && child.getChildCount() > 0) {
+                        FinishTask task = new FinishTask(child, total, splitThreshold);
+                        task.fork();
+                        forked.add(task);
+                    } else {
+                        pending.push(child);
+                    }
+                }
+            }
+            for (FinishTask task : forked) {
+                task.join();
+            }
+        }
+    }
+
+    /**
+     * Builds the call tree incrementally from the records reported by
+     * {@link PapertrailParser#parse(java.nio.file.Path, java.nio.charset.Charset, ProfileRecordVisitor)},
+     * so the stack traces don't need to be held in memory.
+     */
+    public static class Collector implements ProfileRecordVisitor {
+
+        private final StackTraceElementNode rootNode = createRoot();
+        private final CallTreeLimits limits;
+        private final CallTreePruner pruner;
+        private SymbolTable symbolTable;
+        private boolean finished = false;
+
+        public Collector() {
+            this(CallTreeLimits.NONE);
+        }
+
+        public Collector(CallTreeLimits limits) {
+            this.limits = limits;
+            this.pruner = new CallTreePruner(limits);
+        }
+
+        @Override
+        public void visitSymbols(String binary, SymbolTable symbolTable) {
+            this.symbolTable = symbolTable;
+        }
+
+        @Override
+        public void visitRecord(long count, int[] frames, int depth) {
+            if (finished) {
+                throw new IllegalStateException("Call tree was already finished");
+            }
+            rootNode.setCount(rootNode.getCount() + count);
+            pruner.nodesCreated(rootNode, addTrace(rootNode, symbolTable, frames, depth, count));
+        }
+
+        /**
+         * Finish the call tree and return its root. No further records can be
+         * added after this call.
+         */
+        public StackTraceElementNode getRoot() {
+            if (!finished) {
+                finished = true;
+                CallTreePruner.pruneFinal(rootNode, limits);
+                finish(rootNode);
+            }
+            return rootNode;
         }
     }
 }
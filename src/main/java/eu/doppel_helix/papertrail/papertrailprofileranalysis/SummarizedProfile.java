@@ -0,0 +1,72 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Profile, that carries its finished call tree and hot method table, as
+ * created by a {@link ProfileCache}.
+ *
+ * <p>When loaded from the cache, the raw samples are not available. Traces
+ * with identical frames are then merged into one trace, so
+ * {@link #getStackTraces()} holds one trace per distinct stack, in order of
+ * the first appearance of the stack in the original profile.</p>
+ */
+public class SummarizedProfile implements Profile {
+
+    private final String binary;
+    private final SymbolTable symbolTable;
+    private final StackTraceElementNode callTree;
+    private final List<HotMethodElement> hotMethods;
+    private final List<StackTrace> stackTraces;
+
+    public SummarizedProfile(String binary, SymbolTable symbolTable, List<StackTrace> stackTraces, StackTraceElementNode callTree, List<HotMethodElement> hotMethods) {
+        this.binary = binary;
+        this.symbolTable = symbolTable;
+        this.stackTraces = Collections.unmodifiableList(stackTraces);
+        this.callTree = callTree;
+        this.hotMethods = Collections.unmodifiableList(hotMethods);
+    }
+
+    @Override
+    public String getBinary() {
+        return binary;
+    }
+
+    @Override
+    public SymbolTable getSymbolTable() {
+        return symbolTable;
+    }
+
+    @Override
+    public List<StackTrace> getStackTraces() {
+        return stackTraces;
+    }
+
+    /**
+     * @return the finished call tree, it is shared, so it must not be modified
+     */
+    public StackTraceElementNode getCallTree() {
+        return callTree;
+    }
+
+    public List<HotMethodElement> getHotMethods() {
+        return hotMethods;
+    }
+}
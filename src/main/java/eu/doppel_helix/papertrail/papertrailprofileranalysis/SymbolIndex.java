@@ -0,0 +1,268 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Inverted index from symbols to the call tree nodes, used to search the call
+ * tree and the hot methods.
+ *
+ * <p>Symbol names are indexed by their lower case character trigrams. A query
+ * of at least three characters only checks the symbols listed for its rarest
+ * trigram, shorter queries scan the names. The nodes of each symbol are
+ * stored in display order, that is pre-order with the children sorted by
+ * descending count, and are identified by their position in that order.</p>
+ *
+ * <p>The index is immutable once built and can be queried from any
+ * thread.</p>
+ */
+public final class SymbolIndex {
+
+    private static final int[] EMPTY = new int[0];
+
+    private final SymbolTable symbolTable;
+    private final String[] lowerCaseNames;
+    private final Map<Long, int[]> trigrams;
+    // Positions of the nodes of symbol s are
+    // positions[offsets[s]] ... positions[offsets[s + 1] - 1]
+    private final int[] offsets;
+    private final int[] positions;
+    // Symbol id of the node at each position
+    private final int[] symbolIds;
+    // Node at each position, only one of them is used
+    private final StackTraceElementNode[] nodes;
+    private final int[] compactNodes;
+
+    private SymbolIndex(SymbolTable symbolTable, int[] symbolIds, StackTraceElementNode[] nodes, int[] compactNodes) {
+        this.symbolTable = symbolTable;
+        this.symbolIds = symbolIds;
+        this.nodes = nodes;
+        this.compactNodes = compactNodes;
+        int symbols = symbolTable.size();
+        lowerCaseNames = new String[symbols];
+        Map<Long, IntList> trigramLists = new HashMap<>();
+        for (int i = 0; i < symbols; i++) {
+            String name = symbolTable.getName(i).toLowerCase(Locale.ROOT);
+            lowerCaseNames[i] = name;
+            for (int j = 0; j + 3 <= name.length(); j++) {
+                IntList list = trigramLists.computeIfAbsent(trigram(name, j), k -> new IntList());
+                // Symbols are visited in ascending order, so a repeated
+                // trigram of the same name is always the last entry
+                if (list.size == 0 || list.values[list.size - 1] != i) {
+                    list.add(i);
+                }
+            }
+        }
+        trigrams = new HashMap<>(trigramLists.size() * 2);
+        for (Map.Entry<Long, IntList> e : trigramLists.entrySet()) {
+            trigrams.put(e.getKey(), e.getValue().toArray());
+        }
+        offsets = new int[symbols + 1];
+        for (int symbolId : symbolIds) {
+            if (symbolId >= 0) {
+                offsets[symbolId + 1]++;
+            }
+        }
+        for (int i = 0; i < symbols; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        positions = new int[offsets[symbols]];
+        int[] fill = Arrays.copyOf(offsets, symbols);
+        for (int position = 0; position < symbolIds.length; position++) {
+            int symbolId = symbolIds[position];
+            if (symbolId >= 0) {
+                positions[fill[symbolId]++] = position;
+            }
+        }
+    }
+
+    /**
+     * Index the call tree below {@code root}, {@code root} itself is not
+     * part of the index.
+     */
+    public static SymbolIndex build(StackTraceElementNode root, SymbolTable symbolTable) {
+        IntList symbolIds = new IntList();
+        List<StackTraceElementNode> order = new ArrayList<>();
+        ArrayDeque<StackTraceElementNode> pending = new ArrayDeque<>();
+        pushSorted(pending, root);
+        while (!pending.isEmpty()) {
+            StackTraceElementNode node = pending.pop();
+            order.add(node);
+            symbolIds.add(node.getSymbolId());
+            pushSorted(pending, node);
+        }
+        return new SymbolIndex(symbolTable, symbolIds.toArray(), order.toArray(new StackTraceElementNode[order.size()]), null);
+    }
+
+    private static void pushSorted(ArrayDeque<StackTraceElementNode> pending, StackTraceElementNode node) {
+        if (node.getChildCount() == 0) {
+            return;
+        }
+        List<StackTraceElementNode> children = node.getChildren();
+        StackTraceElementNode[] sorted = children.toArray(new StackTraceElementNode[children.size()]);
+        Arrays.sort(sorted, StackTraceSummarizer.BY_COUNT_DESCENDING);
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            pending.push(sorted[i]);
+        }
+    }
+
+    /**
+     * Index the nodes of {@code tree} below its root.
+     */
+    public static SymbolIndex build(CompactCallTree tree) {
+        IntList symbolIds = new IntList();
+        IntList order = new IntList();
+        IntList pending = new IntList();
+        pushChildren(pending, tree, tree.getRoot());
+        while (pending.size > 0) {
+            int node = pending.values[--pending.size];
+            order.add(node);
+            symbolIds.add(tree.getSymbolId(node));
+            pushChildren(pending, tree, node);
+        }
+        return new SymbolIndex(tree.getSymbolTable(), symbolIds.toArray(), null, order.toArray());
+    }
+
+    private static void pushChildren(IntList pending, CompactCallTree tree, int node) {
+        // The children are stored contiguously and sorted by count
+        int first = tree.getFirstChild(node);
+        for (int i = tree.getChildCount(node) - 1; i >= 0; i--) {
+            pending.add(first + i);
+        }
+    }
+
+    private static long trigram(String s, int index) {
+        return ((long) s.charAt(index) << 32) | ((long) s.charAt(index + 1) << 16) | s.charAt(index + 2);
+    }
+
+    public SymbolTable getSymbolTable() {
+        return symbolTable;
+    }
+
+    /**
+     * @return ids of the symbols, whose names contain {@code query} ignoring
+     *         case, in ascending order
+     */
+    public int[] findSymbols(String query) {
+        String needle = query.toLowerCase(Locale.ROOT);
+        if (needle.isEmpty()) {
+            return EMPTY;
+        }
+        IntList result = new IntList();
+        if (needle.length() < 3) {
+            for (int i = 0; i < lowerCaseNames.length; i++) {
+                if (lowerCaseNames[i].contains(needle)) {
+                    result.add(i);
+                }
+            }
+            return result.toArray();
+        }
+        int[] candidates = null;
+        for (int j = 0; j + 3 <= needle.length(); j++) {
+            int[] list = trigrams.get(trigram(needle, j));
+            if (list == null) {
+                return EMPTY;
+            }
+            if (candidates == null || list.length < candidates.length) {
+                candidates = list;
+            }
+        }
+        for (int symbolId : candidates) {
+            if (lowerCaseNames[symbolId].contains(needle)) {
+                result.add(symbolId);
+            }
+        }
+        return result.toArray();
+    }
+
+    /**
+     * @return positions of the nodes of {@code symbols} in display order
+     */
+    public int[] findNodes(int[] symbols) {
+        int count = 0;
+        for (int symbolId : symbols) {
+            count += offsets[symbolId + 1] - offsets[symbolId];
+        }
+        int[] result = new int[count];
+        if (symbols.length > 1 && count > symbolIds.length / 64) {
+            // Sorting a large merged result is slower than a scan, that
+            // produces the positions in order
+            boolean[] matching = new boolean[symbolTable.size()];
+            for (int symbolId : symbols) {
+                matching[symbolId] = true;
+            }
+            int filled = 0;
+            for (int position = 0; position < symbolIds.length; position++) {
+                int symbolId = symbolIds[position];
+                if (symbolId >= 0 && matching[symbolId]) {
+                    result[filled++] = position;
+                }
+            }
+            return result;
+        }
+        int filled = 0;
+        for (int symbolId : symbols) {
+            int length = offsets[symbolId + 1] - offsets[symbolId];
+            System.arraycopy(positions, offsets[symbolId], result, filled, length);
+            filled += length;
+        }
+        if (symbols.length > 1) {
+            Arrays.sort(result);
+        }
+        return result;
+    }
+
+    /**
+     * @return the node at {@code position}, if the index was built from a
+     *         tree of {@link StackTraceElementNode}s
+     */
+    public StackTraceElementNode getNode(int position) {
+        return nodes[position];
+    }
+
+    /**
+     * @return the node index at {@code position}, if the index was built
+     *         from a {@link CompactCallTree}
+     */
+    public int getCompactNode(int position) {
+        return compactNodes[position];
+    }
+
+    private static final class IntList {
+
+        private int[] values = new int[16];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Dense table of symbol names. Each distinct name is assigned an int id,
+ * starting at zero, so that frames can be stored and compared as ints.
+ *
+ * <p>Addresses from the symbol section are resolved to ids through an open
+ * addressing hash table, addresses not found in the symbol section resolve
+ * to {@link #UNKNOWN}.</p>
+ *
+ * <p>The table is not thread safe while it is modified, concurrent lookups
+ * are safe once it is fully populated.</p>
+ */
+public final class SymbolTable {
+
+    public static final int UNKNOWN = 0;
+    public static final String UNKNOWN_NAME = "<unknown>";
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private String[] names = new String[16];
+    private int size = 0;
+
+    private long[] addressKeys = new long[16];
+    private int[] addressValues = new int[16];
+    private int addressCount = 0;
+    private Map<Long, String> addressMap;
+
+    public SymbolTable() {
+        Arrays.fill(addressValues, -1);
+        intern(UNKNOWN_NAME);
+    }
+
+    /**
+     * @return the id of {@code name}, a new id is assigned if the name was not
+     *         seen before
+     */
+    public int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+        }
+        names[size] = name;
+        ids.put(name, size);
+        return size++;
+    }
+
+    /**
+     * @return the id of {@code name} or -1 if the name is not part of the
+     *         table
+     */
+    public int getId(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    public String getName(int id) {
+        return names[id];
+    }
+
+    /**
+     * @return number of symbol ids, valid ids are {@code 0 <= id < size()}
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Bind {@code address} to the symbol {@code name}.
+     *
+     * @return the id of {@code name}
+     */
+    public int addAddress(long address, String name) {
+        int id = intern(name);
+        if ((addressCount + 1) * 2 > addressKeys.length) {
+            rehash(addressKeys.length * 2);
+        }
+        int slot = findSlot(addressKeys, addressValues, address);
+        if (addressValues[slot] < 0) {
+            addressCount++;
+        }
+        addressKeys[slot] = address;
+        addressValues[slot] = id;
+        addressMap = null;
+        return id;
+    }
+
+    /**
+     * @return id of the symbol bound to {@code address} or {@link #UNKNOWN}
+     */
+    public int resolve(long address) {
+        int value = addressValues[findSlot(addressKeys, addressValues, address)];
+        return value < 0 ? UNKNOWN : value;
+    }
+
+    /**
+     * @return read-only map of the addresses from the symbol section to
+     *         their names, created on first access
+     */
+    public Map<Long, String> getAddressMap() {
+        if (addressMap == null) {
+            Map<Long, String> result = new HashMap<>(addressCount * 2);
+            for (int i = 0; i < addressKeys.length; i++) {
+                if (addressValues[i] >= 0) {
+                    result.put(addressKeys[i], names[addressValues[i]]);
+                }
+            }
+            addressMap = Collections.unmodifiableMap(result);
+        }
+        return addressMap;
+    }
+
+    private void rehash(int capacity) {
+        long[] newKeys = new long[capacity];
+        int[] newValues = new int[capacity];
+        Arrays.fill(newValues, -1);
+        for (int i = 0; i < addressKeys.length; i++) {
+            if (addressValues[i] >= 0) {
+                int slot = findSlot(newKeys, newValues, addressKeys[i]);
+                newKeys[slot] = addressKeys[i];
+                newValues[slot] = addressValues[i];
+            }
+        }
+        addressKeys = newKeys;
+        addressValues = newValues;
+    }
+
+    private static int findSlot(long[] keys, int[] values, long address) {
+        int mask = keys.length - 1;
+        int slot = mix(address) & mask;
+        while (values[slot] >= 0 && keys[slot] != address) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        return (int) value;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Inverted index from symbols to the stack traces, that contain them. Each
+ * trace is listed at most once per symbol, in trace order.
+ *
+ * <p>The index is immutable once built and can be queried from any
+ * thread.</p>
+ */
+public final class TraceIndex {
+
+    private final SymbolTable symbolTable;
+    private final List<StackTrace> traces;
+    // Traces containing symbol s are
+    // traceIds[offsets[s]] ... traceIds[offsets[s + 1] - 1]
+    private final int[] offsets;
+    private final int[] traceIds;
+
+    private TraceIndex(SymbolTable symbolTable, List<StackTrace> traces, int[] offsets, int[] traceIds) {
+        this.symbolTable = symbolTable;
+        this.traces = traces;
+        this.offsets = offsets;
+        this.traceIds = traceIds;
+    }
+
+    public static TraceIndex build(Profile pp) {
+        SymbolTable symbolTable = pp.getSymbolTable();
+        List<StackTrace> traces = pp.getStackTraces();
+        int symbols = symbolTable.size();
+        // Number of the last trace, each symbol was counted for, offset by
+        // one so the initial zero never matches
+        int[] lastSeen = new int[symbols];
+        int[] offsets = new int[symbols + 1];
+        for (int t = 0; t < traces.size(); t++) {
+            StackTrace st = traces.get(t);
+            for (int i = 0; i < st.getDepth(); i++) {
+                int symbolId = st.getSymbolId(i);
+                if (lastSeen[symbolId] != t + 1) {
+                    lastSeen[symbolId] = t + 1;
+                    offsets[symbolId + 1]++;
+                }
+            }
+        }
+        for (int i = 0; i < symbols; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        int[] traceIds = new int[offsets[symbols]];
+        int[] fill = Arrays.copyOf(offsets, symbols);
+        Arrays.fill(lastSeen, 0);
+        for (int t = 0; t < traces.size(); t++) {
+            StackTrace st = traces.get(t);
+            for (int i = 0; i < st.getDepth(); i++) {
+                int symbolId = st.getSymbolId(i);
+                if (lastSeen[symbolId] != t + 1) {
+                    lastSeen[symbolId] = t + 1;
+                    traceIds[fill[symbolId]++] = t;
+                }
+            }
+        }
+        return new TraceIndex(symbolTable, traces, offsets, traceIds);
+    }
+
+    public SymbolTable getSymbolTable() {
+        return symbolTable;
+    }
+
+    public List<StackTrace> getTraces() {
+        return traces;
+    }
+
+    /**
+     * @return number of traces containing {@code symbolId}
+     */
+    public int getTraceCount(int symbolId) {
+        return offsets[symbolId + 1] - offsets[symbolId];
+    }
+
+    /**
+     * @param index index between 0 and {@link #getTraceCount(int)}
+     * @return index of a trace containing {@code symbolId} in
+     *         {@link #getTraces()}
+     */
+    public int getTraceId(int symbolId, int index) {
+        return traceIds[offsets[symbolId] + index];
+    }
+}
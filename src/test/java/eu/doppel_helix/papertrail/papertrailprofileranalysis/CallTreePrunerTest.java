@@ -0,0 +1,70 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CallTreePrunerTest {
+
+    private static final int SAMPLES = 50_000;
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static Profile profile;
+
+    @BeforeClass
+    public static void generateProfile() throws IOException {
+        Path file = folder.newFile("wide.pprof").toPath();
+        new ProfileGenerator()
+            .setSamples(SAMPLES)
+            .setSymbols(20_000)
+            .setDepth(4, 32)
+            .setFanOut(200)
+            .setSkew(0.5)
+            .write(file);
+        profile = new PapertrailParser(file, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testNodeCountStaysWithinLimit() {
+        for (int maxNodes : new int[]{2, 3, 10, 101, 1_000, 20_000}) {
+            for (int threads : new int[]{1, 4}) {
+                StackTraceElementNode root = StackTraceSummarizer.summarize(profile, threads, new CallTreeLimits(0, maxNodes));
+                long nodes = LoadStatistics.countNodes(root) - 1;
+                assertTrue("maxNodes " + maxNodes + ", threads " + threads + ": " + nodes + " nodes",
+                    nodes <= maxNodes);
+                assertEquals(SAMPLES, root.getCount());
+            }
+        }
+    }
+
+    @Test
+    public void testUnfinishedNodeCountStaysWithinLimit() {
+        StackTraceElementNode root = StackTraceSummarizer.summarizeUnfinished(profile, 1, new CallTreeLimits(0.001, 500));
+        assertTrue(LoadStatistics.countNodes(root) - 1 <= 500);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import javax.swing.tree.DefaultTreeModel;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ProfileCacheTest {
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static Path file;
+
+    @BeforeClass
+    public static void generateProfile() throws IOException {
+        file = folder.newFile("ties.pprof").toPath();
+        // Few samples spread over many paths, so most siblings have equal
+        // counts and their order depends on the order of the traces
+        new ProfileGenerator()
+            .setSamples(20_000)
+            .setSymbols(1_000)
+            .setDepth(2, 16)
+            .setFanOut(32)
+            .setRecursionRate(0.05)
+            .write(file);
+    }
+
+    @Test
+    public void testReopenedProfileMatchesParsedProfile() throws IOException {
+        ProfileCache cache = new ProfileCache(folder.newFolder("cache").toPath(), Long.MAX_VALUE);
+        PapertrailParser parser = new PapertrailParser(file, StandardCharsets.UTF_8);
+        String expectedTree = print(StackTraceSummarizer.summarize(parser));
+        String expectedHotMethods = format(HotMethodAggregator.aggregate(parser, 1).getHotMethods());
+
+        LoadStatistics missStatistics = new LoadStatistics();
+        SummarizedProfile written = cache.open(file, StandardCharsets.UTF_8, 1, ProgressMonitor.NONE, missStatistics);
+        assertTrue(missStatistics.getBytesRead() > 0);
+        assertEquals(expectedTree, print(written.getCallTree()));
+        assertEquals(expectedHotMethods, format(written.getHotMethods()));
+
+        LoadStatistics hitStatistics = new LoadStatistics();
+        SummarizedProfile read = cache.open(file, StandardCharsets.UTF_8, 1, ProgressMonitor.NONE, hitStatistics);
+        assertEquals("served from the cache", 0, hitStatistics.getBytesRead());
+        assertEquals(expectedTree, print(read.getCallTree()));
+        assertEquals(expectedHotMethods, format(read.getHotMethods()));
+        // The traces rebuilt from the entry summarize to the same tree
+        assertEquals(expectedTree, print(StackTraceSummarizer.summarize(read)));
+    }
+
+    private static String print(StackTraceElementNode root) throws IOException {
+        StringWriter out = new StringWriter();
+        new CallTreePrinter(out, Integer.MAX_VALUE, 0).print(new DefaultTreeModel(root));
+        return out.toString();
+    }
+
+    private static String format(List<HotMethodElement> hotMethods) {
+        StringBuilder sb = new StringBuilder();
+        for (HotMethodElement hme : hotMethods) {
+            sb.append(hme.getSelfTime()).append(' ').append(hme.getTotalTime()).append(' ').append(hme.getLocation()).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RollingProfileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final RollingProfile rollingProfile = new RollingProfile();
+    // Snapshots taken so far and their expected content
+    private final Map<SummarizedProfile, String> snapshots = new LinkedHashMap<>();
+
+    @Test
+    public void testSnapshotsMatchMergedProfile() throws IOException {
+        // Many symbols, so that removing it leaves most of the table unused
+        Path large = generate("large.pprof", 3_000, 1);
+        Path first = generate("first.pprof", 200, 2);
+        Path second = generate("second.pprof", 200, 3);
+        Path replacement = generate("replacement.tmp", 200, 4);
+
+        put(large);
+        checkSnapshot(large);
+        put(first);
+        checkSnapshot(large, first);
+        put(second);
+        checkSnapshot(large, first, second);
+
+        Files.copy(replacement, first, StandardCopyOption.REPLACE_EXISTING);
+        put(first);
+        checkSnapshot(large, first, second);
+
+        assertTrue(rollingProfile.remove(large));
+        SummarizedProfile compacted = checkSnapshot(first, second);
+        assertTrue("symbol table was compacted", compacted.getSymbolTable().size() < 1_000);
+
+        assertTrue(rollingProfile.remove(second));
+        checkSnapshot(first);
+        assertTrue(rollingProfile.remove(first));
+        SummarizedProfile empty = checkSnapshot();
+        assertEquals(0, empty.getStackTraces().size());
+
+        // Earlier snapshots share nodes with the later ones, but must not
+        // change
+        for (Map.Entry<SummarizedProfile, String> e : snapshots.entrySet()) {
+            assertEquals(e.getValue(), print(e.getKey()));
+        }
+    }
+
+    @Test
+    public void testUnchangedSubtreesAreShared() throws IOException {
+        put(generate("first.pprof", 200, 2));
+        SummarizedProfile before = rollingProfile.snapshot();
+        SummarizedProfile after = rollingProfile.snapshot();
+        assertTrue(before.getCallTree().getChildCount() > 0);
+        for (int i = 0; i < before.getCallTree().getChildCount(); i++) {
+            assertSame(before.getCallTree().getChildAt(i), after.getCallTree().getChildAt(i));
+        }
+    }
+
+    private Path generate(String name, int symbols, long seed) throws IOException {
+        Path file = folder.getRoot().toPath().resolve(name);
+        new ProfileGenerator()
+            .setSamples(5_000)
+            .setSymbols(symbols)
+            .setDepth(2, 12)
+            .setFanOut(8)
+            .setRecursionRate(0.05)
+            .setSeed(seed)
+            .write(file);
+        return file;
+    }
+
+    private void put(Path file) throws IOException {
+        rollingProfile.put(file, new PapertrailParser(file, StandardCharsets.UTF_8));
+    }
+
+    private SummarizedProfile checkSnapshot(Path... files) throws IOException {
+        SummarizedProfile snapshot = rollingProfile.snapshot();
+        String expected;
+        if (files.length == 0) {
+            expected = "<> 0 0\n";
+        } else {
+            MergedProfile merged = MergedProfile.load(Arrays.asList(files), StandardCharsets.UTF_8, 1);
+            expected = print(StackTraceSummarizer.summarize(merged), HotMethodAggregator.aggregate(merged, 1).getHotMethods());
+        }
+        assertEquals(expected, print(snapshot));
+        snapshots.put(snapshot, expected);
+        return snapshot;
+    }
+
+    private static String print(SummarizedProfile profile) {
+        return print(profile.getCallTree(), profile.getHotMethods());
+    }
+
+    /**
+     * Children with equal counts are ordered by insertion, which differs
+     * between the incremental and the fresh tree, so both are printed with
+     * the children sorted by count and location.
+     */
+    private static String print(StackTraceElementNode root, List<HotMethodElement> hotMethods) {
+        StringBuilder sb = new StringBuilder();
+        printNode(sb, root, "");
+        List<HotMethodElement> sorted = new ArrayList<>(hotMethods);
+        sorted.sort(Comparator.comparing(HotMethodElement::getLocation));
+        for (HotMethodElement hme : sorted) {
+            sb.append(hme.getSelfTime()).append(' ').append(hme.getTotalTime()).append(' ').append(hme.getLocation()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void printNode(StringBuilder sb, StackTraceElementNode node, String indent) {
+        sb.append(indent).append(node.getLocation()).append(' ').append(node.getCount()).append(' ').append(node.getSelfCount()).append('\n');
+        List<StackTraceElementNode> children = new ArrayList<>(node.getChildren());
+        children.sort(Comparator.comparingLong(StackTraceElementNode::getCount).reversed()
+            .thenComparing(StackTraceElementNode::getLocation));
+        for (StackTraceElementNode child : children) {
+            printNode(sb, child, indent + " ");
+        }
+    }
+}
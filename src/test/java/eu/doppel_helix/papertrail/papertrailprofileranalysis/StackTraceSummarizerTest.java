@@ -0,0 +1,70 @@
+/*
+ * Copyright 2019 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppel_helix.papertrail.papertrailprofileranalysis;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import javax.swing.tree.DefaultTreeModel;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+public class StackTraceSummarizerTest {
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static Path file;
+    private static Profile profile;
+
+    @BeforeClass
+    public static void generateProfile() throws IOException {
+        file = folder.newFile("recursive.pprof").toPath();
+        // Enough traces to split the work into several partial trees
+        new ProfileGenerator()
+            .setSamples(40_000)
+            .setSymbols(2_000)
+            .setDepth(2, 24)
+            .setFanOut(16)
+            .setRecursionRate(0.1)
+            .write(file);
+        profile = new PapertrailParser(file, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testParallelTextOutputMatchesSingleThreaded() throws IOException {
+        // Single threaded text output, as printed by -t for a single file
+        StackTraceSummarizer.Collector collector = new StackTraceSummarizer.Collector();
+        PapertrailParser.parse(file, StandardCharsets.UTF_8, collector);
+        String expected = print(collector.getRoot());
+        assertEquals(expected, print(StackTraceSummarizer.summarize(profile, 1)));
+        for (int threads : new int[]{2, 4, 7}) {
+            assertEquals("threads " + threads, expected, print(StackTraceSummarizer.summarize(profile, threads)));
+        }
+    }
+
+    private static String print(StackTraceElementNode root) throws IOException {
+        StringWriter out = new StringWriter();
+        new CallTreePrinter(out, Integer.MAX_VALUE, 0).print(new DefaultTreeModel(root));
+        return out.toString();
+    }
+}